@@ -0,0 +1,146 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.Arrays;
+
+/**
+ * The affine transforms behind {@link Picture#transform(AffineTransform, int, int, java.awt.Color)}.
+ *
+ * Each output pixel is mapped back through the inverse transform to a point in the source,
+ * and sampled there with bilinear interpolation; source pixels past the edges read as the
+ * background color. Along a row the source point moves by the same step from one pixel to the
+ * next, so it is stepped in 32.32 fixed point instead of being multiplied out. Where a row's
+ * source points are more than a pixel outside the picture, the output is just background, so
+ * each row works out the span of pixels that can touch the picture and fills the rest without
+ * sampling. Bands of rows run in parallel.
+ */
+final class AffineWarp {
+
+    /** Fixed point bits of the source coordinates */
+    private static final int SHIFT = 32;
+    private static final long ONE = 1L<<SHIFT;
+
+    /** Bits of the interpolation weights taken from each coordinate; 255 times two of them multiplied still fits in an int */
+    private static final int WEIGHT_BITS = 11;
+    private static final int WEIGHT_ONE = 1<<WEIGHT_BITS;
+
+    private AffineWarp() {
+    }
+
+    /**
+     * Transforms a store
+     * @param src The store to transform. It is not changed
+     * @param transform Maps source coordinates to output coordinates
+     * @param width The width of the result
+     * @param height The height of the result
+     * @param background The packed color of output pixels that come from outside the source
+     * @return A new store holding the result
+     */
+    static PixelStore transform(PixelStore src, AffineTransform transform, int width, int height, int background) {
+        if (width<=0 || height<=0) throw new RuntimeException("Can't have an empty image!");
+        AffineTransform inverse;
+        try {
+            inverse = transform.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new RuntimeException("Can't transform with something that flattens the picture", e);
+        }
+        PixelStore dst = src.blank(width, height);
+        RowBands.run(height, 1, (y0, y1) -> band(src, dst, y0, y1, inverse, background), src, dst);
+        return dst;
+    }
+
+    private static void band(PixelStore src, PixelStore dst, int y0, int y1, AffineTransform inverse, int background) {
+        int width = dst.width;
+        double[] m = new double[6];
+        inverse.getMatrix(m);
+        long dudx = Math.round(m[0]*ONE);
+        long dvdx = Math.round(m[1]*ONE);
+        int[] out = new int[width];
+        for (int y = y0; y<y1; y++) {
+            // the source point under the center of pixel (0, y), relative to source pixel centers
+            double u = m[0]*0.5+m[2]*(y+0.5)+m[4]-0.5;
+            double v = m[1]*0.5+m[3]*(y+0.5)+m[5]-0.5;
+            long u0 = Math.round(u*ONE);
+            long v0 = Math.round(v*ONE);
+
+            int[] span = span(u0, dudx, src.width, width);
+            int[] vSpan = span(v0, dvdx, src.height, width);
+            int start = Math.max(span[0], vSpan[0]);
+            int end = Math.min(span[1], vSpan[1]);
+            if (start>=end) {
+                Arrays.fill(out, background);
+            } else {
+                Arrays.fill(out, 0, start, background);
+                Arrays.fill(out, end, width, background);
+                long fu = u0+start*dudx;
+                long fv = v0+start*dvdx;
+                for (int x = start; x<end; x++, fu += dudx, fv += dvdx) {
+                    out[x] = sample(src, fu, fv, background);
+                }
+            }
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+
+    /**
+     * Finds the pixels of a row whose source coordinate is within a pixel of the source, so
+     * bilinear sampling can read some of it
+     * @param c0 The fixed point coordinate at pixel 0
+     * @param step How much the coordinate changes from one pixel to the next
+     * @param n The source's width or height
+     * @param width The length of the row
+     * @return The first pixel inside and the pixel after the last one, which are equal if none are
+     */
+    private static int[] span(long c0, long step, int n, int width) {
+        // inside means -ONE < c < n*ONE
+        long lo = -ONE;
+        long hi = n*ONE;
+        if (step==0) return c0>lo && c0<hi ? new int[] {0, width} : new int[] {0, 0};
+        double a = (double)(lo-c0)/step;
+        double b = (double)(hi-c0)/step;
+        double first = Math.min(a, b);
+        double last = Math.max(a, b);
+        int start = (int)Math.max(0, Math.min(width, Math.floor(first)));
+        int end = (int)Math.max(0, Math.min(width, Math.ceil(last)+1));
+        // the floating point bounds are only a guess; trim them to what the fixed point steps give
+        while (start<end && !inside(c0+start*step, lo, hi)) start++;
+        while (end>start && !inside(c0+(end-1)*step, lo, hi)) end--;
+        return new int[] {start, end};
+    }
+
+    private static boolean inside(long c, long lo, long hi) {
+        return c>lo && c<hi;
+    }
+
+    /** Samples the source at a fixed point position, blending the four pixels around it */
+    private static int sample(PixelStore src, long u, long v, int background) {
+        int x = (int)(u>>SHIFT);
+        int y = (int)(v>>SHIFT);
+        int fx = (int)(u>>(SHIFT-WEIGHT_BITS)) & (WEIGHT_ONE-1);
+        int fy = (int)(v>>(SHIFT-WEIGHT_BITS)) & (WEIGHT_ONE-1);
+        int a, b, c, d;
+        if (x>=0 && y>=0 && x<src.width-1 && y<src.height-1) {
+            a = src.get(x, y);
+            b = src.get(x+1, y);
+            c = src.get(x, y+1);
+            d = src.get(x+1, y+1);
+        } else {
+            a = pixel(src, x, y, background);
+            b = pixel(src, x+1, y, background);
+            c = pixel(src, x, y+1, background);
+            d = pixel(src, x+1, y+1, background);
+        }
+        int wa = (WEIGHT_ONE-fx)*(WEIGHT_ONE-fy);
+        int wb = fx*(WEIGHT_ONE-fy);
+        int wc = (WEIGHT_ONE-fx)*fy;
+        int wd = fx*fy;
+        int half = 1<<(2*WEIGHT_BITS-1);
+        int r = (wa*(a>>16 & 0xff)+wb*(b>>16 & 0xff)+wc*(c>>16 & 0xff)+wd*(d>>16 & 0xff)+half)>>(2*WEIGHT_BITS);
+        int g = (wa*(a>>8 & 0xff)+wb*(b>>8 & 0xff)+wc*(c>>8 & 0xff)+wd*(d>>8 & 0xff)+half)>>(2*WEIGHT_BITS);
+        int bl = (wa*(a & 0xff)+wb*(b & 0xff)+wc*(c & 0xff)+wd*(d & 0xff)+half)>>(2*WEIGHT_BITS);
+        return r<<16 | g<<8 | bl;
+    }
+
+    private static int pixel(PixelStore src, int x, int y, int background) {
+        return x>=0 && y>=0 && x<src.width && y<src.height ? src.get(x, y) : background;
+    }
+}
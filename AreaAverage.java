@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * Resizing by area averaging, behind {@link Picture#shrink(int, int)}: each output pixel is
+ * the average of the source pixels under it, weighted by how much of each it covers, so
+ * shrinking by any factor keeps every source pixel's share and doesn't alias.
+ *
+ * Coverage is worked out exactly in integers. Laid along a line of length src*dst, source
+ * pixel i covers [i*dst, (i+1)*dst) and output pixel j covers [j*src, (j+1)*src), so their
+ * overlap is the weight and every output pixel's weights add up to src. Rows are averaged
+ * across first, into per-channel sums, then those are added down the columns; bands of
+ * output rows run in parallel, each reading just the source rows under it.
+ */
+final class AreaAverage {
+
+    private AreaAverage() {
+    }
+
+    /**
+     * Resizes a store by area averaging
+     * @param src The store to resize. It is not changed
+     * @param width The width of the result
+     * @param height The height of the result
+     * @return A new store holding the result
+     */
+    static PixelStore resize(PixelStore src, int width, int height) {
+        if (width<=0 || height<=0) throw new RuntimeException("Can't have an empty image!");
+        int[] first = new int[width];
+        int[] counts = new int[width];
+        int[] weights = weights(src.width, width, first, counts);
+        PixelStore dst = src.blank(width, height);
+        RowBands.run(height, 1, (y0, y1) -> band(src, dst, y0, y1, first, counts, weights), src, dst);
+        return dst;
+    }
+
+    /**
+     * Works out which source pixels each output pixel covers, and by how much
+     * @param n The source length
+     * @param m The output length
+     * @param first Filled with the first source pixel under each output pixel
+     * @param counts Filled with the number of source pixels under each output pixel
+     * @return The weights, counts[0] of them for the first output pixel, then the next's, and so on
+     */
+    private static int[] weights(int n, int m, int[] first, int[] counts) {
+        int total = 0;
+        for (int j = 0; j<m; j++) {
+            long start = (long)j*n;
+            long end = start+n;
+            first[j] = (int)(start/m);
+            counts[j] = (int)((end+m-1)/m)-first[j];
+            total += counts[j];
+        }
+        int[] weights = new int[total];
+        for (int j = 0, k = 0; j<m; j++) {
+            long start = (long)j*n;
+            long end = start+n;
+            for (int i = first[j]; i<first[j]+counts[j]; i++) {
+                weights[k++] = (int)(Math.min(end, (long)(i+1)*m)-Math.max(start, (long)i*m));
+            }
+        }
+        return weights;
+    }
+
+    private static void band(PixelStore src, PixelStore dst, int y0, int y1, int[] first, int[] counts, int[] weights) {
+        int width = first.length;
+        int height = dst.height;
+        int[] row = new int[src.width];
+        int[] across = new int[3*width];
+        long[] sums = new long[3*width];
+        int[] out = new int[width];
+        // every output pixel's weights add up to src.width*src.height
+        long divisor = (long)src.width*src.height;
+        for (int y = y0; y<y1; y++) {
+            Arrays.fill(sums, 0);
+            long start = (long)y*src.height;
+            long end = start+src.height;
+            for (int sy = (int)(start/height); (long)sy*height<end; sy++) {
+                long wy = Math.min(end, (long)(sy+1)*height)-Math.max(start, (long)sy*height);
+                src.getRow(sy, 0, src.width, row, 0);
+                across(row, across, first, counts, weights);
+                for (int i = 0; i<3*width; i++) sums[i] += wy*across[i];
+            }
+            for (int x = 0; x<width; x++) {
+                int r = (int)((sums[3*x]+divisor/2)/divisor);
+                int g = (int)((sums[3*x+1]+divisor/2)/divisor);
+                int b = (int)((sums[3*x+2]+divisor/2)/divisor);
+                out[x] = r<<16 | g<<8 | b;
+            }
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+
+    /** Sums each channel of a row under each output pixel, weighted by coverage */
+    private static void across(int[] row, int[] across, int[] first, int[] counts, int[] weights) {
+        for (int j = 0, k = 0; j<first.length; j++) {
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int i = first[j]; i<first[j]+counts[j]; i++, k++) {
+                int rgb = row[i];
+                int w = weights[k];
+                r += w*(rgb>>16 & 0xff);
+                g += w*(rgb>>8 & 0xff);
+                b += w*(rgb & 0xff);
+            }
+            across[3*j] = r;
+            across[3*j+1] = g;
+            across[3*j+2] = b;
+        }
+    }
+}
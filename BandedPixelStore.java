@@ -0,0 +1,218 @@
+import java.awt.image.BufferedImage;
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A {@link PixelStore} that keeps its pixels on the heap in bands of {@link #BAND_HEIGHT} rows.
+ *
+ * Snapshots are copy-on-write at two levels. A snapshot shares the whole band table, so taking
+ * one is O(1). The first write to either side copies the table (one reference per band), and a
+ * write to a band that is still shared copies just that band.
+ */
+class BandedPixelStore extends PixelStore {
+
+    /** log2 of {@link #BAND_HEIGHT} */
+    static final int BAND_SHIFT = 6;
+
+    /** The number of rows in each band, and so the unit that gets copied when a shared band is written */
+    static final int BAND_HEIGHT = 1<<BAND_SHIFT;
+
+    private static final int BAND_MASK = BAND_HEIGHT-1;
+
+    /** Releases the bands of stores that were garbage collected, so the survivors stop copying them */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** A band of rows, packed row after row, and the number of tables that point at it */
+    private static final class Band {
+        final int[] data;
+        final AtomicInteger owners = new AtomicInteger(1);
+
+        Band(int[] data) {
+            this.data = data;
+        }
+    }
+
+    /** The list of bands, and the number of stores that point at it */
+    private static final class Table implements Runnable {
+        final Band[] bands;
+        final AtomicInteger owners = new AtomicInteger(1);
+
+        Table(Band[] bands) {
+            this.bands = bands;
+        }
+
+        /** Drops one store's claim on this table, and on its bands if it was the last one */
+        @Override
+        public void run() {
+            if (owners.decrementAndGet()==0) for (Band band : bands) band.owners.decrementAndGet();
+        }
+    }
+
+    /** Holds the current table of a store for its {@link Cleaner} without holding the store itself */
+    private static final class Release implements Runnable {
+        volatile Table table;
+
+        Release(Table table) {
+            this.table = table;
+        }
+
+        @Override
+        public void run() {
+            table.run();
+        }
+    }
+
+    private Table table;
+    private final Release release;
+
+    /**
+     * Creates a store whose pixels are all black
+     * @param width The width of the store
+     * @param height The height of the store
+     */
+    BandedPixelStore(int width, int height) {
+        super(width, height);
+        Band[] bands = new Band[bandCount(height)];
+        for (int b = 0; b<bands.length; b++) bands[b] = new Band(new int[bandRows(b)*width]);
+        this.table = new Table(bands);
+        this.release = register(table);
+    }
+
+    /**
+     * Creates a store whose pixels are all one color. Every band starts out as the same shared
+     * array, so only the bands that get written to are ever allocated separately
+     * @param width The width of the store
+     * @param height The height of the store
+     * @param rgb The packed 0xRRGGBB color
+     */
+    BandedPixelStore(int width, int height, int rgb) {
+        super(width, height);
+        int[] fill = new int[BAND_HEIGHT*width];
+        Arrays.fill(fill, rgb);
+        Band full = new Band(fill);
+        Band[] bands = new Band[bandCount(height)];
+        full.owners.set(bands.length);
+        Arrays.fill(bands, full);
+        // the last band may be shorter, but it is only ever indexed within its own rows
+        this.table = new Table(bands);
+        this.release = register(table);
+    }
+
+    private BandedPixelStore(int width, int height, Table table) {
+        super(width, height);
+        this.table = table;
+        this.release = register(table);
+    }
+
+    /**
+     * Creates a store holding the RGB values of an image
+     * @param image The image to copy
+     * @return The new store
+     */
+    static BandedPixelStore of(BufferedImage image) {
+        BandedPixelStore store = new BandedPixelStore(image.getWidth(), image.getHeight());
+        Band[] bands = store.table.bands;
+        for (int b = 0; b<bands.length; b++) {
+            int[] data = bands[b].data;
+            image.getRGB(0, b<<BAND_SHIFT, store.width, bandRows(b, store.height), data, 0, store.width);
+            for (int i = 0; i<data.length; i++) data[i] &= 0xffffff;
+        }
+        return store;
+    }
+
+    private Release register(Table table) {
+        Release release = new Release(table);
+        CLEANER.register(this, release);
+        return release;
+    }
+
+    private static int bandCount(int height) {
+        return (height+BAND_MASK)>>BAND_SHIFT;
+    }
+
+    private static int bandRows(int band, int height) {
+        return Math.min(BAND_HEIGHT, height-(band<<BAND_SHIFT));
+    }
+
+    private int bandRows(int band) {
+        return bandRows(band, height);
+    }
+
+    /**
+     * Gets the packed rows of a band for reading. The array must not be written to
+     * @param band The band index, y>>{@link #BAND_SHIFT}
+     * @return The band's array; row y starts at (y&amp;({@link #BAND_HEIGHT}-1))*width
+     */
+    int[] band(int band) {
+        return table.bands[band].data;
+    }
+
+    /**
+     * Gets the packed rows of a band for writing, copying the band and/or the table first if
+     * they are shared with another store
+     * @param band The band index, y>>{@link #BAND_SHIFT}
+     * @return The band's array; row y starts at (y&amp;({@link #BAND_HEIGHT}-1))*width
+     */
+    int[] writableBand(int band) {
+        Table t = table;
+        if (t.owners.get()>1) {
+            Band[] bands = t.bands.clone();
+            for (Band b : bands) b.owners.incrementAndGet();
+            Table own = new Table(bands);
+            table = own;
+            release.table = own;
+            t.run();
+            t = own;
+        }
+        Band b = t.bands[band];
+        if (b.owners.get()>1) {
+            int[] data = Arrays.copyOf(b.data, bandRows(band)*width);
+            t.bands[band] = new Band(data);
+            b.owners.decrementAndGet();
+            return data;
+        }
+        return b.data;
+    }
+
+    @Override
+    int get(int x, int y) {
+        return table.bands[y>>BAND_SHIFT].data[(y&BAND_MASK)*width+x];
+    }
+
+    @Override
+    void set(int x, int y, int rgb) {
+        writableBand(y>>BAND_SHIFT)[(y&BAND_MASK)*width+x] = rgb;
+    }
+
+    @Override
+    void getRow(int y, int x, int w, int[] dst, int off) {
+        System.arraycopy(band(y>>BAND_SHIFT), (y&BAND_MASK)*width+x, dst, off, w);
+    }
+
+    @Override
+    void setRow(int y, int x, int w, int[] src, int off) {
+        System.arraycopy(src, off, writableBand(y>>BAND_SHIFT), (y&BAND_MASK)*width+x, w);
+    }
+
+    @Override
+    void apply(IntUnaryOperator op, int x, int y, int w, int h) {
+        for (int r = y; r<y+h; ) {
+            int b = r>>BAND_SHIFT;
+            int end = Math.min(y+h, (b+1)<<BAND_SHIFT);
+            int[] data = writableBand(b);
+            for (; r<end; r++) {
+                int start = (r&BAND_MASK)*width+x;
+                for (int i = start; i<start+w; i++) data[i] = op.applyAsInt(data[i]);
+            }
+        }
+    }
+
+    @Override
+    PixelStore snapshot() {
+        Table t = table;
+        t.owners.incrementAndGet();
+        return new BandedPixelStore(width, height, t);
+    }
+}
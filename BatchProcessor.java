@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Runs a filter chain over every image in a directory, several images at a time.
+ *
+ * Usage: java BatchProcessor inputDir outputDir chain [--workers N] [--memory MB] [--cache DIR]
+ * e.g.   java BatchProcessor in out grayscale,posterize:63,blur:5 --workers 8 --memory 2048
+ *
+ * Each result is written to outputDir under the same name and format as its input. Before an
+ * image is decoded its size is read from the header, and the worker waits until the memory it
+ * will need fits under the budget alongside the images already being processed. Images too big
+ * for the budget on their own are streamed through a {@link StripPipeline} instead when the
+ * chain allows it, and otherwise run alone. With --cache, results are kept in a
+ * {@link FilterCache} directory, so later runs over the same images skip the filters.
+ */
+public class BatchProcessor {
+
+    /**
+     * Bytes of heap assumed per pixel of an image being processed in memory: the decoded
+     * image, the Picture, a second Picture for filters like blur, and the image being encoded
+     */
+    static final long BYTES_PER_PIXEL = 16;
+
+    /** The rows per strip when an image is streamed */
+    static final int STRIP_ROWS = 64;
+
+    /** The strips each queue holds when an image is streamed */
+    static final int QUEUE_DEPTH = 4;
+
+    /** The outcome of processing one file */
+    public static class Result {
+        private final Path file;
+        private final int width;
+        private final int height;
+        private final long nanos;
+        private final boolean streamed;
+        private final Throwable error;
+
+        Result(Path file, int width, int height, long nanos, boolean streamed, Throwable error) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.nanos = nanos;
+            this.streamed = streamed;
+            this.error = error;
+        }
+
+        /** @return The input file */
+        public Path getFile() { return file; }
+
+        /** @return The image's width, or 0 if it couldn't be read */
+        public int getWidth() { return width; }
+
+        /** @return The image's height, or 0 if it couldn't be read */
+        public int getHeight() { return height; }
+
+        /** @return The time spent decoding, filtering and encoding, in nanoseconds */
+        public long getNanos() { return nanos; }
+
+        /** @return Whether the image was streamed in strips rather than loaded whole */
+        public boolean isStreamed() { return streamed; }
+
+        /** @return Why the file failed, or null if it succeeded */
+        public Throwable getError() { return error; }
+
+        /** @return The image's size in megapixels */
+        public double getMegapixels() { return (double)width*height/1e6; }
+
+        @Override
+        public String toString() {
+            if (error!=null) return String.format("FAIL  %s: %s", file.getFileName(), error.getMessage());
+            double seconds = nanos/1e9;
+            return String.format("ok    %s  %dx%d  %.2f MP  %.0f ms  %.1f MP/s%s", file.getFileName(), width, height,
+                    getMegapixels(), seconds*1000, getMegapixels()/seconds, streamed ? "  (streamed)" : "");
+        }
+    }
+
+    private final List<PictureFilter> filters;
+    private final int workers;
+    private final long memoryBudget;
+    private final boolean streamable;
+    private final int halo;
+    private FilterCache cache;
+
+    /**
+     * Creates a batch processor
+     * @param filters The filters to run on every image, in order
+     * @param workers The number of images to process at once
+     * @param memoryBudget The most bytes of heap the images being processed may use between them
+     */
+    public BatchProcessor(List<PictureFilter> filters, int workers, long memoryBudget) {
+        if (workers<=0) throw new RuntimeException("Need at least one worker");
+        if (memoryBudget<=0) throw new RuntimeException("The memory budget must be positive");
+        this.filters = List.copyOf(filters);
+        this.workers = workers;
+        this.memoryBudget = memoryBudget;
+        boolean streamable = true;
+        int halo = 0;
+        for (PictureFilter filter : filters) {
+            if (filter.getRadius()==PictureFilter.GLOBAL) streamable = false;
+            else halo += filter.getRadius();
+        }
+        this.streamable = streamable;
+        this.halo = halo;
+    }
+
+    /**
+     * Sets a cache to look results up in before running the filters. Images that are
+     * streamed don't use it
+     * @param cache The cache, or null for none
+     */
+    public void setCache(FilterCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Processes every readable image in a directory
+     * @param inputDir The directory to read images from
+     * @param outputDir The directory to write results to; created if it doesn't exist
+     * @param listener Called with each file's result as soon as it is done, from a worker thread
+     * @return The results, in the order the files were listed
+     */
+    public List<Result> run(Path inputDir, Path outputDir, Consumer<Result> listener) {
+        List<Path> files = listImages(inputDir);
+        try {
+            Files.createDirectories(outputDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't create "+outputDir+": "+e.getMessage(), e);
+        }
+
+        // permits are KiB, so budgets of terabytes still fit in an int
+        int totalPermits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget>>10));
+        Semaphore memory = new Semaphore(totalPermits, true);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Path file : files) {
+            futures.add(pool.submit(() -> {
+                Result result = process(file, outputDir.resolve(file.getFileName()), memory, totalPermits);
+                synchronized (listener) {
+                    listener.accept(result);
+                }
+                return result;
+            }));
+        }
+        pool.shutdown();
+
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> future : futures) results.add(future.get());
+        } catch (Exception e) {
+            pool.shutdownNow();
+            throw new RuntimeException("Batch interrupted: "+e.getMessage(), e);
+        }
+        return results;
+    }
+
+    /** Lists the files in a directory that ImageIO has a reader for, sorted by name */
+    private static List<Path> listImages(Path dir) {
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) suffixes.add(suffix.toLowerCase());
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                String suffix = name.substring(name.lastIndexOf('.')+1).toLowerCase();
+                if (Files.isRegularFile(entry) && name.contains(".") && suffixes.contains(suffix)) files.add(entry);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't list "+dir+": "+e.getMessage(), e);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /** Reads an image's width and height from its header without decoding it */
+    private static int[] readSize(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = in==null ? null : ImageIO.getImageReaders(in);
+            if (readers==null || !readers.hasNext()) throw new IOException("Can't read the picture at "+file);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Processes one file once enough of the memory budget is free */
+    private Result process(Path in, Path out, Semaphore memory, int totalPermits) {
+        int width = 0;
+        int height = 0;
+        long start = System.nanoTime();
+        try {
+            int[] size = readSize(in);
+            width = size[0];
+            height = size[1];
+            long whole = (long)width*height*BYTES_PER_PIXEL;
+            long strips = 4L*width*(STRIP_ROWS*(2*QUEUE_DEPTH+3)+2L*halo);
+            boolean stream = streamable && whole>memoryBudget && strips<whole;
+            int permits = (int)Math.min(totalPermits, Math.max(1, (stream ? strips : whole)>>10));
+
+            memory.acquire(permits);
+            try {
+                start = System.nanoTime();
+                if (stream) {
+                    new StripPipeline(filters, STRIP_ROWS, QUEUE_DEPTH).run(in, out);
+                } else {
+                    // bypass the ImageCache: each file is read once, and caching would break the budget
+                    Picture picture = new Picture(Picture.decode(in.toFile()));
+                    if (cache!=null) cache.apply(filters, picture).save(out);
+                    else PictureFilter.applyAll(filters, picture).save(out);
+                }
+            } finally {
+                memory.release(permits);
+            }
+            return new Result(in, width, height, System.nanoTime()-start, stream, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(in, width, height, System.nanoTime()-start, false, e);
+        } catch (Exception | OutOfMemoryError e) {
+            return new Result(in, width, height, System.nanoTime()-start, false, e);
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        int workers = Runtime.getRuntime().availableProcessors();
+        long memoryMB = Runtime.getRuntime().maxMemory()/2>>20;
+        String cacheDir = null;
+        try {
+            for (int i = 0; i<args.length; i++) {
+                if (args[i].equals("--workers")) workers = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--memory")) memoryMB = Long.parseLong(args[++i]);
+                else if (args[i].equals("--cache")) cacheDir = args[++i];
+                else positional.add(args[i]);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            positional.clear();
+        }
+        if (positional.size()!=3) {
+            System.out.println("Usage: java BatchProcessor inputDir outputDir chain [--workers N] [--memory MB] [--cache DIR]");
+            System.out.println("  e.g. java BatchProcessor in out grayscale,posterize:63,blur:5 --workers 8");
+            System.exit(2);
+        }
+
+        BatchProcessor batch = new BatchProcessor(PictureFilter.parseChain(positional.get(2)), workers, memoryMB<<20);
+        // results go straight to disk, so the cache's memory tier would only duplicate them
+        if (cacheDir!=null) batch.setCache(new FilterCache(0, Paths.get(cacheDir)));
+        System.out.println("Running "+PictureFilter.toSpec(batch.filters)+" with "+workers+" workers and "+memoryMB+" MB");
+        long start = System.nanoTime();
+        List<Result> results = batch.run(Paths.get(positional.get(0)), Paths.get(positional.get(1)), System.out::println);
+        double seconds = (System.nanoTime()-start)/1e9;
+
+        int ok = 0;
+        double megapixels = 0;
+        for (Result result : results) {
+            if (result.getError()==null) {
+                ok++;
+                megapixels += result.getMegapixels();
+            }
+        }
+        int failed = results.size()-ok;
+        System.out.println(String.format("Processed %d of %d images in %.2f s: %.2f images/s, %.2f MP/s%s",
+                ok, results.size(), seconds, ok/seconds, megapixels/seconds, failed>0 ? " ("+failed+" failed)" : ""));
+        if (batch.cache!=null) System.out.println("Cache: "+batch.cache);
+        if (failed>0) System.exit(1);
+    }
+}
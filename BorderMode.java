@@ -0,0 +1,38 @@
+/**
+ * How a neighbourhood filter like {@link Picture#convolve(Kernel, BorderMode)} reads pixels
+ * past the edges of the picture. For a row "abcd":
+ * <ul>
+ * <li>{@link #CLAMP}: aa|abcd|dd, the edge pixel repeats</li>
+ * <li>{@link #REFLECT}: ba|abcd|dc, the picture is mirrored at its edge</li>
+ * <li>{@link #WRAP}: cd|abcd|ab, the picture tiles</li>
+ * <li>{@link #CONSTANT}: one color everywhere past the edges</li>
+ * </ul>
+ */
+public enum BorderMode {
+    CLAMP,
+    REFLECT,
+    WRAP,
+    CONSTANT;
+
+    /**
+     * Maps a row or column index that may be outside the picture to one inside it
+     * @param i The index
+     * @param n The number of rows or columns
+     * @return The index to read, or -1 for {@link #CONSTANT} if i is outside the picture
+     */
+    int map(int i, int n) {
+        if (i>=0 && i<n) return i;
+        switch (this) {
+            case CLAMP:
+                return i<0 ? 0 : n-1;
+            case REFLECT: {
+                int m = Math.floorMod(i, 2*n);
+                return m<n ? m : 2*n-1-m;
+            }
+            case WRAP:
+                return Math.floorMod(i, n);
+            default:
+                return -1;
+        }
+    }
+}
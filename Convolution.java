@@ -0,0 +1,183 @@
+import java.util.Arrays;
+
+/**
+ * The convolution engine behind {@link Picture#convolve(Kernel, BorderMode, java.awt.Color)}.
+ *
+ * The picture is cut into tiles of whole bands of rows by a few hundred columns, sized so a
+ * tile's source pixels fit in a core's cache, and the tiles run in parallel on the common
+ * fork/join pool. Each tile first copies its neighbourhood into a window, applying the border
+ * mode only where the window hangs over the picture's edges; interior tiles are plain row
+ * copies. The window is split into one array per channel, and the kernel runs over those
+ * with no bounds checks at all, as one 2D pass or, for separable kernels, a row pass then a
+ * column pass. Kernels big enough that a Fourier transform is cheaper go to
+ * {@link FftConvolution} instead.
+ */
+final class Convolution {
+
+    /** Roughly how many source pixels a tile's window should hold */
+    private static final int TILE_PIXELS = 1<<14;
+
+    private Convolution() {
+    }
+
+    /**
+     * Convolves a store with a kernel
+     * @param src The store to convolve. It is not changed
+     * @param kernel The kernel
+     * @param border How pixels past the edges are read
+     * @param constant The packed color past the edges for {@link BorderMode#CONSTANT}
+     * @return A new store holding the result
+     */
+    static PixelStore convolve(PixelStore src, Kernel kernel, BorderMode border, int constant) {
+        if (FftConvolution.cheaper(src, kernel)) return FftConvolution.convolve(src, kernel, border, constant);
+        PixelStore dst = src.blank(src.width, src.height);
+        int rows = BandedPixelStore.BAND_HEIGHT;
+        int tileWidth = Math.max(32, TILE_PIXELS/(rows+kernel.height-1)-(kernel.width-1));
+        RowBands.tiles(src.width, src.height, tileWidth, rows,
+                (x0, y0, x1, y1) -> tile(src, dst, kernel, border, constant, x0, y0, x1, y1), src, dst);
+        return dst;
+    }
+
+    private static void tile(PixelStore src, PixelStore dst, Kernel kernel, BorderMode border, int constant,
+            int x0, int y0, int x1, int y1) {
+        int tileWidth = x1-x0;
+        int tileHeight = y1-y0;
+        int windowWidth = tileWidth+kernel.width-1;
+        int windowHeight = tileHeight+kernel.height-1;
+        int[] window = window(src, border, constant, x0-kernel.width/2, y0-kernel.height/2, windowWidth, windowHeight);
+
+        int[] out = new int[tileWidth*tileHeight];
+        for (int shift = 16; shift>=0; shift -= 8) {
+            int[] channel;
+            if (kernel.ints!=null) {
+                int[] plane = new int[window.length];
+                for (int i = 0; i<window.length; i++) plane[i] = window[i]>>shift & 0xff;
+                channel = kernel.intRow!=null
+                        ? separable(plane, windowWidth, windowHeight, tileWidth, tileHeight, kernel.intRow, kernel.intColumn, kernel.separableDivisor)
+                        : direct(plane, windowWidth, tileWidth, tileHeight, kernel.ints, kernel.width, kernel.height, kernel.divisor);
+            } else {
+                float[] plane = new float[window.length];
+                for (int i = 0; i<window.length; i++) plane[i] = window[i]>>shift & 0xff;
+                channel = kernel.row!=null
+                        ? separable(plane, windowWidth, windowHeight, tileWidth, tileHeight, kernel.row, kernel.column)
+                        : direct(plane, windowWidth, tileWidth, tileHeight, kernel.weights, kernel.width, kernel.height);
+            }
+            for (int i = 0; i<out.length; i++) out[i] |= channel[i]<<shift;
+        }
+        for (int y = 0; y<tileHeight; y++) dst.setRow(y0+y, x0, tileWidth, out, y*tileWidth);
+    }
+
+    /**
+     * Copies a rectangle of source pixels that may hang over the picture's edges, reading
+     * the pixels past the edges as the border mode says
+     */
+    static int[] window(PixelStore src, BorderMode border, int constant, int left, int top, int width, int height) {
+        int[] window = new int[width*height];
+        // the columns of the window that are inside the picture
+        int inside0 = Math.max(0, left);
+        int inside1 = Math.min(src.width, left+width);
+        for (int r = 0; r<height; r++) {
+            int y = border.map(top+r, src.height);
+            int start = r*width;
+            if (y<0) {
+                Arrays.fill(window, start, start+width, constant);
+                continue;
+            }
+            if (inside1>inside0) src.getRow(y, inside0, inside1-inside0, window, start+inside0-left);
+            for (int c = 0; c<width; c++) {
+                int x = left+c;
+                if (x>=inside0 && x<inside1) {
+                    c = inside1-left-1;
+                    continue;
+                }
+                int mapped = border.map(x, src.width);
+                window[start+c] = mapped<0 ? constant : src.get(mapped, y);
+            }
+        }
+        return window;
+    }
+
+    private static int[] direct(int[] plane, int stride, int width, int height, int[] weights, int kw, int kh, int divisor) {
+        int[] out = new int[width*height];
+        for (int y = 0; y<height; y++) {
+            for (int x = 0; x<width; x++) {
+                int sum = 0;
+                for (int ky = 0, k = 0; ky<kh; ky++) {
+                    int base = (y+ky)*stride+x;
+                    for (int kx = 0; kx<kw; kx++, k++) sum += weights[k]*plane[base+kx];
+                }
+                out[y*width+x] = divide(sum, divisor);
+            }
+        }
+        return out;
+    }
+
+    private static int[] separable(int[] plane, int stride, int rows, int width, int height, int[] row, int[] column, int divisor) {
+        int[] across = new int[width*rows];
+        for (int r = 0; r<rows; r++) {
+            for (int x = 0; x<width; x++) {
+                int sum = 0;
+                int base = r*stride+x;
+                for (int k = 0; k<row.length; k++) sum += row[k]*plane[base+k];
+                across[r*width+x] = sum;
+            }
+        }
+        int[] out = new int[width*height];
+        for (int y = 0; y<height; y++) {
+            for (int x = 0; x<width; x++) {
+                int sum = 0;
+                for (int k = 0; k<column.length; k++) sum += column[k]*across[(y+k)*width+x];
+                out[y*width+x] = divide(sum, divisor);
+            }
+        }
+        return out;
+    }
+
+    private static int[] direct(float[] plane, int stride, int width, int height, float[] weights, int kw, int kh) {
+        int[] out = new int[width*height];
+        for (int y = 0; y<height; y++) {
+            for (int x = 0; x<width; x++) {
+                float sum = 0;
+                for (int ky = 0, k = 0; ky<kh; ky++) {
+                    int base = (y+ky)*stride+x;
+                    for (int kx = 0; kx<kw; kx++, k++) sum += weights[k]*plane[base+kx];
+                }
+                out[y*width+x] = round(sum);
+            }
+        }
+        return out;
+    }
+
+    private static int[] separable(float[] plane, int stride, int rows, int width, int height, float[] row, float[] column) {
+        float[] across = new float[width*rows];
+        for (int r = 0; r<rows; r++) {
+            for (int x = 0; x<width; x++) {
+                float sum = 0;
+                int base = r*stride+x;
+                for (int k = 0; k<row.length; k++) sum += row[k]*plane[base+k];
+                across[r*width+x] = sum;
+            }
+        }
+        int[] out = new int[width*height];
+        for (int y = 0; y<height; y++) {
+            for (int x = 0; x<width; x++) {
+                float sum = 0;
+                for (int k = 0; k<column.length; k++) sum += column[k]*across[(y+k)*width+x];
+                out[y*width+x] = round(sum);
+            }
+        }
+        return out;
+    }
+
+    /** Divides a weighted sum, rounding to the nearest level, and clamps it to 0-255 */
+    private static int divide(int sum, int divisor) {
+        if (sum<=0) return 0;
+        return (int)Math.min(255, (sum+(long)(divisor>>1))/divisor);
+    }
+
+    /** Rounds a weighted sum to the nearest level and clamps it to 0-255 */
+    private static int round(float sum) {
+        int level = Math.round(sum);
+        return level<0 ? 0 : level>255 ? 255 : level;
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.stream.IntStream;
+
+/**
+ * Contrast limited adaptive histogram equalization (CLAHE), behind
+ * {@link Picture#clahe(int, int, double)}.
+ *
+ * The picture is cut into a grid of tiles and each channel of each tile gets its own
+ * equalizing lookup table, so dark and bright parts of the picture are each stretched over the
+ * full range. Before a tile's table is made, its histogram bins are clipped to clipLimit times
+ * the average bin, and what was clipped off is shared out over all the bins; that caps how
+ * steep the table gets, so flat areas don't have their noise blown up. Each pixel then blends
+ * the tables of the four tiles whose centers are around it, weighted by how close it is to each
+ * center, so there are no seams between tiles. Tiles are counted in parallel, and bands of rows
+ * are mapped in parallel.
+ */
+final class Equalization {
+
+    /** Fixed point bits of the blending weights along each axis */
+    private static final int SHIFT = 8;
+    private static final int ONE = 1<<SHIFT;
+
+    private Equalization() {
+    }
+
+    /**
+     * Equalizes a store tile by tile
+     * @param src The store to equalize. It is not changed
+     * @param across The number of tiles across
+     * @param down The number of tiles down
+     * @param clipLimit How many times the average bin count a bin may hold before it is clipped; 1 is the tightest clipping, which still evens out each tile
+     * @return A new store holding the result
+     */
+    static PixelStore clahe(PixelStore src, int across, int down, double clipLimit) {
+        int width = src.width;
+        int height = src.height;
+        if (across<=0 || down<=0 || across>width || down>height) {
+            throw new RuntimeException("Can't cut a "+width+"x"+height+" picture into "+across+"x"+down+" tiles");
+        }
+        if (!(clipLimit>=1)) throw new RuntimeException("The clip limit must be at least 1");
+
+        // tile t covers columns edges[t] to edges[t+1]
+        int[] xEdges = edges(width, across);
+        int[] yEdges = edges(height, down);
+        int[][] tables = new int[across*down][];
+        IntStream tiles = IntStream.range(0, across*down);
+        if (src.concurrent()) tiles = tiles.parallel();
+        tiles.forEach(t -> {
+            int tx = t%across;
+            int ty = t/across;
+            tables[t] = table(src, xEdges[tx], yEdges[ty], xEdges[tx+1], yEdges[ty+1], clipLimit);
+        });
+
+        // the tiles around each column and row, and how far it is from the first to the second
+        int[] left = new int[width];
+        int[] xWeights = new int[width];
+        neighbours(xEdges, left, xWeights);
+        int[] top = new int[height];
+        int[] yWeights = new int[height];
+        neighbours(yEdges, top, yWeights);
+
+        PixelStore dst = src.blank(width, height);
+        RowBands.run(height, 1, (y0, y1) -> {
+            int[] row = new int[width];
+            for (int y = y0; y<y1; y++) {
+                src.getRow(y, 0, width, row, 0);
+                int ty0 = top[y];
+                int ty1 = Math.min(down-1, ty0+1);
+                int fy = yWeights[y];
+                for (int x = 0; x<width; x++) {
+                    int tx0 = left[x];
+                    int tx1 = Math.min(across-1, tx0+1);
+                    int fx = xWeights[x];
+                    int[] a = tables[ty0*across+tx0];
+                    int[] b = tables[ty0*across+tx1];
+                    int[] c = tables[ty1*across+tx0];
+                    int[] d = tables[ty1*across+tx1];
+                    int wa = (ONE-fx)*(ONE-fy);
+                    int wb = fx*(ONE-fy);
+                    int wc = (ONE-fx)*fy;
+                    int wd = fx*fy;
+                    int rgb = row[x];
+                    int out = 0;
+                    for (int ch = 0, shift = 16; ch<3; ch++, shift -= 8) {
+                        int i = ch*256+(rgb>>shift & 0xff);
+                        int v = (wa*a[i]+wb*b[i]+wc*c[i]+wd*d[i]+(1<<(2*SHIFT-1)))>>(2*SHIFT);
+                        out |= v<<shift;
+                    }
+                    row[x] = out;
+                }
+                dst.setRow(y, 0, width, row, 0);
+            }
+        }, src, dst);
+        return dst;
+    }
+
+    /** Cuts a length into n nearly equal parts, returning the n+1 places they start and end */
+    private static int[] edges(int length, int n) {
+        int[] edges = new int[n+1];
+        for (int i = 0; i<=n; i++) edges[i] = (int)((long)i*length/n);
+        return edges;
+    }
+
+    /**
+     * Works out which two tile centers each column (or row) lies between
+     * @param edges Where the tiles start and end
+     * @param first Filled with the tile whose center is at or before each column, or 0 before the first center
+     * @param weights Filled with the weight of the tile after it, in {@link #SHIFT}-bit fixed point
+     */
+    private static void neighbours(int[] edges, int[] first, int[] weights) {
+        int n = edges.length-1;
+        for (int x = 0, t = 0; x<first.length; x++) {
+            // twice the centers and the pixel, to keep them whole numbers
+            int p = 2*x+1;
+            while (t<n-1 && edges[t+1]+edges[t+2]<=p) t++;
+            int c0 = edges[t]+edges[t+1];
+            int c1 = t+1<n ? edges[t+1]+edges[t+2] : c0;
+            first[x] = t;
+            // past the outermost centers there is only one tile to use
+            if (p<=c0 || c1==c0) weights[x] = 0;
+            else weights[x] = (int)(((long)(p-c0)*ONE+(c1-c0)/2)/(c1-c0));
+        }
+    }
+
+    /** Makes the clipped equalizing tables for the three channels of a tile, 256 values each */
+    private static int[] table(PixelStore src, int x0, int y0, int x1, int y1, double clipLimit) {
+        int[] counts = new int[3*256];
+        int[] row = new int[x1-x0];
+        for (int y = y0; y<y1; y++) {
+            src.getRow(y, x0, x1-x0, row, 0);
+            for (int rgb : row) {
+                counts[rgb>>16 & 0xff]++;
+                counts[256+(rgb>>8 & 0xff)]++;
+                counts[512+(rgb & 0xff)]++;
+            }
+        }
+        int pixels = (x1-x0)*(y1-y0);
+        int limit = (int)Math.max(1, Math.min(pixels, Math.ceil(clipLimit*pixels/256)));
+        int[] table = new int[3*256];
+        for (int ch = 0; ch<3; ch++) {
+            int off = ch*256;
+            int excess = 0;
+            for (int v = 0; v<256; v++) {
+                if (counts[off+v]>limit) {
+                    excess += counts[off+v]-limit;
+                    counts[off+v] = limit;
+                }
+            }
+            // share the clipped counts out evenly, the odd ones spaced across the range
+            int each = excess/256;
+            int rest = excess%256;
+            long cumulative = 0;
+            for (int v = 0; v<256; v++) {
+                cumulative += counts[off+v]+each+(rest>0 && v*rest/256!=(v+1)*rest/256 ? 1 : 0);
+                table[off+v] = (int)((cumulative*255+pixels/2)/pixels);
+            }
+        }
+        return table;
+    }
+}
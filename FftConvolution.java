@@ -0,0 +1,282 @@
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Convolution through the fast Fourier transform, which {@link Convolution} switches to when
+ * a kernel is big enough that it's cheaper: a direct convolution costs the kernel's area per
+ * pixel, while this costs a few transforms of the padded picture, about log2 of its area per
+ * pixel, whatever the kernel.
+ *
+ * The picture is read with its border (as {@link Convolution#window} does), zero-padded to a
+ * power of two each way, and transformed in float. The three channels and the kernel make
+ * two complex transforms: red and green as the real and imaginary parts of one, and the
+ * kernel and blue as the parts of the other, pulled apart afterwards by their symmetry since
+ * both are real (the kernel is scaled up to blue's size first, or float rounding in blue
+ * would swamp it). Multiplying spectra and transforming back gives the convolution, with red
+ * and green in the real and imaginary parts and blue from the second inverse. Rows and
+ * columns are transformed in parallel. Plans (twiddle factors and bit reversals) are cached
+ * per length, and the big buffers are kept per padded size for the next call.
+ */
+final class FftConvolution {
+
+    /**
+     * The cost of one point of one pass of a transform, in units of one kernel tap on one
+     * channel. Measured rather than derived: a butterfly does more arithmetic than a tap, and
+     * the column passes are strided
+     */
+    private static final double COST_PER_POINT = 3.5;
+
+    /** The heap a convolution takes per padded point: four float planes and the int window */
+    private static final long BYTES_PER_POINT = 4*4+4;
+
+    /** The most heap the padded planes may take; bigger pictures are convolved directly */
+    private static final long MAX_BYTES = Runtime.getRuntime().maxMemory()/4;
+
+    /** A radix-2 transform of one length */
+    private static final class Plan {
+        final int n;
+        final float[] cos;
+        final float[] sin;
+        final int[] reverse;
+
+        Plan(int n) {
+            this.n = n;
+            cos = new float[n/2];
+            sin = new float[n/2];
+            for (int i = 0; i<n/2; i++) {
+                cos[i] = (float)Math.cos(2*Math.PI*i/n);
+                sin[i] = (float)Math.sin(2*Math.PI*i/n);
+            }
+            reverse = new int[n];
+            int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i<n; i++) reverse[i] = bits==0 ? 0 : Integer.reverse(i)>>>(32-bits);
+        }
+
+        /** Transforms n complex values in place, starting at off */
+        void transform(float[] re, float[] im, int off, boolean inverse) {
+            for (int i = 0; i<n; i++) {
+                int j = reverse[i];
+                if (j>i) {
+                    float t = re[off+i];
+                    re[off+i] = re[off+j];
+                    re[off+j] = t;
+                    t = im[off+i];
+                    im[off+i] = im[off+j];
+                    im[off+j] = t;
+                }
+            }
+            float sign = inverse ? 1 : -1;
+            for (int size = 2; size<=n; size <<= 1) {
+                int half = size>>1;
+                int step = n/size;
+                for (int start = off; start<off+n; start += size) {
+                    for (int k = 0; k<half; k++) {
+                        float wr = cos[k*step];
+                        float wi = sign*sin[k*step];
+                        int a = start+k;
+                        int b = a+half;
+                        float tr = wr*re[b]-wi*im[b];
+                        float ti = wr*im[b]+wi*re[b];
+                        re[b] = re[a]-tr;
+                        im[b] = im[a]-ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+    }
+
+    /** The four padded-size buffers one convolution needs */
+    private static final class Buffers {
+        final float[] re1, im1, re2, im2;
+
+        Buffers(int size) {
+            re1 = new float[size];
+            im1 = new float[size];
+            re2 = new float[size];
+            im2 = new float[size];
+        }
+    }
+
+    private static final Map<Integer, Plan> plans = new ConcurrentHashMap<>();
+    private static final Map<Long, SoftReference<Buffers>> spare = new ConcurrentHashMap<>();
+
+    private FftConvolution() {
+    }
+
+    private static Plan plan(int n) {
+        return plans.computeIfAbsent(n, Plan::new);
+    }
+
+    /**
+     * Decides whether a convolution would be cheaper through the FFT
+     * @param src The store to convolve
+     * @param kernel The kernel
+     * @return true if this class should do it
+     */
+    static boolean cheaper(PixelStore src, Kernel kernel) {
+        // the padded picture is held whole on the heap, so not for tiled or mapped stores, which
+        // can be bigger than the heap, nor for heap stores whose planes wouldn't fit its budget
+        if (!src.concurrent() || src instanceof MappedPixelStore) return false;
+        double taps = kernel.isSeparable() ? kernel.width+kernel.height : (double)kernel.width*kernel.height;
+        double direct = 3*taps*src.width*src.height;
+        long cols = paddedSize(src.width+kernel.width-1);
+        long rows = paddedSize(src.height+kernel.height-1);
+        // 2 forward and 2 inverse transforms, each a pass over the rows and a pass over the columns
+        double fft = 4*COST_PER_POINT*cols*rows*(Long.numberOfTrailingZeros(cols)+Long.numberOfTrailingZeros(rows));
+        return fft<direct && cols*rows<=Integer.MAX_VALUE/2 && BYTES_PER_POINT*cols*rows<=MAX_BYTES;
+    }
+
+    private static int paddedSize(int n) {
+        return Integer.highestOneBit(n)==n ? n : Integer.highestOneBit(n)<<1;
+    }
+
+    /**
+     * Convolves a store with a kernel, with the same results (to within rounding) as
+     * {@link Convolution#convolve}
+     * @param src The store to convolve. It is not changed
+     * @param kernel The kernel
+     * @param border How pixels past the edges are read
+     * @param constant The packed color past the edges for {@link BorderMode#CONSTANT}
+     * @return A new store holding the result
+     */
+    static PixelStore convolve(PixelStore src, Kernel kernel, BorderMode border, int constant) {
+        int width = src.width;
+        int height = src.height;
+        int windowWidth = width+kernel.width-1;
+        int windowHeight = height+kernel.height-1;
+        int cols = paddedSize(windowWidth);
+        int rows = paddedSize(windowHeight);
+        long key = (long)cols<<32 | rows;
+
+        SoftReference<Buffers> ref = spare.remove(key);
+        Buffers buffers = ref==null ? null : ref.get();
+        if (buffers==null) buffers = new Buffers(cols*rows);
+        float[] re1 = buffers.re1, im1 = buffers.im1, re2 = buffers.re2, im2 = buffers.im2;
+
+        // red and green in the first buffer, the kernel and blue in the second
+        int[] window = Convolution.window(src, border, constant, -(kernel.width/2), -(kernel.height/2), windowWidth, windowHeight);
+        IntStream.range(0, rows).parallel().forEach(y -> {
+            int start = y*cols;
+            Arrays.fill(re1, start, start+cols, 0);
+            Arrays.fill(im1, start, start+cols, 0);
+            Arrays.fill(re2, start, start+cols, 0);
+            Arrays.fill(im2, start, start+cols, 0);
+            if (y<windowHeight) {
+                for (int x = 0; x<windowWidth; x++) {
+                    int rgb = window[y*windowWidth+x];
+                    re1[start+x] = rgb>>16 & 0xff;
+                    im1[start+x] = rgb>>8 & 0xff;
+                    im2[start+x] = rgb & 0xff;
+                }
+            }
+        });
+        // pulling the kernel's spectrum back out of the blue channel's subtracts values of
+        // blue's size, so in float the kernel has to be scaled up to the same size first
+        double blueNorm = 0;
+        for (int rgb : window) blueNorm += (rgb & 0xff)*(rgb & 0xff);
+        double kernelNorm = 0;
+        for (float w : kernel.weights) kernelNorm += w*w;
+        float boost = blueNorm==0 || kernelNorm==0 ? 1 : (float)Math.sqrt(blueNorm/kernelNorm);
+        // the kernel goes in flipped, at negative offsets, so the product gives a correlation
+        for (int ky = 0; ky<kernel.height; ky++) {
+            for (int kx = 0; kx<kernel.width; kx++) {
+                re2[((rows-ky)%rows)*cols+(cols-kx)%cols] = boost*kernel.weights[ky*kernel.width+kx];
+            }
+        }
+
+        transform(re1, im1, cols, rows, windowHeight, false);
+        transform(re2, im2, cols, rows, rows, false);
+
+        // split the second spectrum into the kernel's and blue's (both real, so each is its own
+        // mirror's conjugate), then multiply both picture spectra by the kernel's
+        float scale = 1f/((float)cols*rows*boost);
+        IntStream.range(0, rows).parallel().forEach(y -> {
+            int my = (rows-y)%rows;
+            for (int x = 0; x<cols; x++) {
+                int k = y*cols+x;
+                int m = my*cols+(cols-x)%cols;
+                if (m<k) continue;
+                float zr = re2[k], zi = im2[k], wr = re2[m], wi = im2[m];
+                float kr = (zr+wr)/2*scale, ki = (zi-wi)/2*scale;
+                float br = (zi+wi)/2, bi = (wr-zr)/2;
+                // at the mirror the kernel and blue spectra are the conjugates
+                re2[k] = br*kr-bi*ki;
+                im2[k] = br*ki+bi*kr;
+                re2[m] = br*kr-bi*ki;
+                im2[m] = -(br*ki+bi*kr);
+                float ar = re1[k], ai = im1[k];
+                re1[k] = ar*kr-ai*ki;
+                im1[k] = ar*ki+ai*kr;
+                if (m!=k) {
+                    ar = re1[m];
+                    ai = im1[m];
+                    re1[m] = ar*kr+ai*ki;
+                    im1[m] = ai*kr-ar*ki;
+                }
+            }
+        });
+
+        inverse(re1, im1, cols, rows, height);
+        inverse(re2, im2, cols, rows, height);
+
+        PixelStore dst = src.blank(width, height);
+        RowBands.run(height, 1, (y0, y1) -> {
+            int[] out = new int[width];
+            for (int y = y0; y<y1; y++) {
+                int start = y*cols;
+                for (int x = 0; x<width; x++) {
+                    out[x] = level(re1[start+x])<<16 | level(im1[start+x])<<8 | level(re2[start+x]);
+                }
+                dst.setRow(y, 0, width, out, 0);
+            }
+        }, dst);
+
+        spare.put(key, new SoftReference<>(buffers));
+        return dst;
+    }
+
+    /** A forward 2D transform; rows from used on are all zero, so their row transforms are skipped */
+    private static void transform(float[] re, float[] im, int cols, int rows, int used, boolean inverse) {
+        Plan across = plan(cols);
+        IntStream.range(0, used).parallel().forEach(y -> across.transform(re, im, y*cols, inverse));
+        columns(re, im, cols, rows, inverse);
+    }
+
+    /** An inverse 2D transform; only the first needed rows are transformed back across */
+    private static void inverse(float[] re, float[] im, int cols, int rows, int needed) {
+        columns(re, im, cols, rows, true);
+        Plan across = plan(cols);
+        IntStream.range(0, needed).parallel().forEach(y -> across.transform(re, im, y*cols, true));
+    }
+
+    /** Transforms every column, in parallel groups that each copy their columns out and back */
+    private static void columns(float[] re, float[] im, int cols, int rows, boolean inverse) {
+        Plan down = plan(rows);
+        int group = 16;
+        IntStream.range(0, (cols+group-1)/group).parallel().forEach(g -> {
+            float[] colRe = new float[rows];
+            float[] colIm = new float[rows];
+            for (int x = g*group; x<Math.min(cols, (g+1)*group); x++) {
+                for (int y = 0, i = x; y<rows; y++, i += cols) {
+                    colRe[y] = re[i];
+                    colIm[y] = im[i];
+                }
+                down.transform(colRe, colIm, 0, inverse);
+                for (int y = 0, i = x; y<rows; y++, i += cols) {
+                    re[i] = colRe[y];
+                    im[i] = colIm[y];
+                }
+            }
+        });
+    }
+
+    private static int level(float value) {
+        int level = Math.round(value);
+        return level<0 ? 0 : level>255 ? 255 : level;
+    }
+}
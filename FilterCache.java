@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of filter chains, so running the same chain on the same pixels again
+ * costs one pass to hash the input instead of running the filters.
+ *
+ * Results are keyed on a 128-bit hash of the input's pixels and size plus the chain in
+ * canonical form ({@link PictureFilter#toSpec(List)}), so the key doesn't depend on where the
+ * pixels came from. There are two tiers:
+ * <ul>
+ * <li>memory: an LRU of result Pictures, bounded by their total size in bytes. Hits hand out
+ *     copy-on-write copies, so callers can't change what's cached</li>
+ * <li>disk (optional): a directory of raw picture files (see {@link Picture#saveRaw(Path)}),
+ *     which survives between runs and is loaded without decoding</li>
+ * </ul>
+ * Chains containing glassFilter are random, so they are never cached.
+ */
+public class FilterCache {
+
+    private final long memoryBudget;
+    private final Path directory;
+    private final LinkedHashMap<String, Picture> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private final Map<String, CompletableFuture<Picture>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache
+     * @param memoryBudget The most bytes of results to keep in memory (4 per pixel)
+     * @param directory The directory for the disk tier, created if needed, or null for memory only
+     */
+    public FilterCache(long memoryBudget, Path directory) {
+        if (memoryBudget<0) throw new RuntimeException("The memory budget can't be negative");
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+        if (directory!=null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't create "+directory+": "+e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Runs a filter chain on a Picture, or looks up the result if it has been run before
+     * @param chain The filter chain, like "grayscale,posterize:63,blur:5"
+     * @param input The Picture to filter. It is not changed
+     * @return The result, which the caller is free to change
+     */
+    public Picture apply(String chain, Picture input) {
+        return apply(PictureFilter.parseChain(chain), input);
+    }
+
+    /**
+     * Runs a filter chain on a Picture, or looks up the result if it has been run before
+     * @param filters The filters to run, in order
+     * @param input The Picture to filter. It is not changed
+     * @return The result, which the caller is free to change
+     */
+    public Picture apply(List<PictureFilter> filters, Picture input) {
+        for (PictureFilter filter : filters) {
+            if (filter.getName().equals("glassFilter")) return PictureFilter.applyAll(filters, new Picture(input));
+        }
+        String key = hash(input)+"/"+input.getWidth()+"x"+input.getHeight()+"/"+PictureFilter.toSpec(filters);
+
+        Picture cached = fromMemory(key);
+        if (cached!=null) {
+            memoryHits.incrementAndGet();
+            return new Picture(cached);
+        }
+
+        CompletableFuture<Picture> mine = new CompletableFuture<>();
+        CompletableFuture<Picture> running = inFlight.putIfAbsent(key, mine);
+        if (running!=null) {
+            // someone else is already computing this result; share it
+            memoryHits.incrementAndGet();
+            return new Picture(running.join());
+        }
+        try {
+            Picture result = fromDisk(key);
+            if (result!=null) {
+                diskHits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                result = PictureFilter.applyAll(filters, new Picture(input));
+                toDisk(key, result);
+            }
+            toMemory(key, result);
+            mine.complete(result);
+            return new Picture(result);
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    private synchronized Picture fromMemory(String key) {
+        return memory.get(key);
+    }
+
+    private synchronized void toMemory(String key, Picture result) {
+        long bytes = 4L*result.getWidth()*result.getHeight();
+        if (bytes>memoryBudget) return;
+        Picture old = memory.put(key, new Picture(result));
+        if (old!=null) memoryBytes -= 4L*old.getWidth()*old.getHeight();
+        memoryBytes += bytes;
+        Iterator<Map.Entry<String, Picture>> it = memory.entrySet().iterator();
+        while (memoryBytes>memoryBudget && it.hasNext()) {
+            Picture evicted = it.next().getValue();
+            memoryBytes -= 4L*evicted.getWidth()*evicted.getHeight();
+            it.remove();
+        }
+    }
+
+    private Path diskPath(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i<16; i++) name.append(String.format("%02x", digest[i]));
+            return directory.resolve(name+".rpic");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private Picture fromDisk(String key) {
+        if (directory==null) return null;
+        Path path = diskPath(key);
+        if (!Files.exists(path)) return null;
+        try {
+            // copy onto the heap so the file can be replaced or deleted while the result is in use
+            PixelStore mapped = Picture.openRaw(path, false).store();
+            PixelStore copy = new BandedPixelStore(mapped.width, mapped.height);
+            int[] row = new int[mapped.width];
+            for (int y = 0; y<mapped.height; y++) {
+                mapped.getRow(y, 0, mapped.width, row, 0);
+                copy.setRow(y, 0, mapped.width, row, 0);
+            }
+            return new Picture(copy);
+        } catch (RuntimeException e) {
+            // a damaged entry is just a miss
+            return null;
+        }
+    }
+
+    private void toDisk(String key, Picture result) {
+        if (directory==null) return;
+        Path path = diskPath(key);
+        try {
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try {
+                result.saveRaw(temp);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the disk tier is best-effort; the result is still good
+        }
+    }
+
+    /**
+     * Computes a 128-bit hash of a Picture's pixels, as 32 hex digits. It's meant to be fast,
+     * not secure: two independent 64-bit multiply-rotate lanes over the packed colors
+     * @param picture The Picture to hash
+     * @return The hash
+     */
+    public static String hash(Picture picture) {
+        PixelStore store = picture.store();
+        long a = 0x9E3779B97F4A7C15L ^ store.width;
+        long b = 0xC2B2AE3D27D4EB4FL ^ store.height;
+        int[] row = new int[store.width];
+        for (int y = 0; y<store.height; y++) {
+            store.getRow(y, 0, store.width, row, 0);
+            for (int rgb : row) {
+                a = Long.rotateLeft(a ^ rgb, 27)*0x9E3779B97F4A7C15L;
+                b = Long.rotateLeft(b+rgb, 31)*0xC2B2AE3D27D4EB4FL;
+            }
+        }
+        return String.format("%016x%016x", mix(a), mix(b^a));
+    }
+
+    /** The MurmurHash3 finalizer, so every input bit affects every output bit */
+    private static long mix(long h) {
+        h ^= h>>>33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h>>>33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h^(h>>>33);
+    }
+
+    /** @return The number of lookups answered from memory */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /** @return The number of lookups answered from the disk tier */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /** @return The number of lookups that had to run the filters */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the fraction of lookups that didn't have to run the filters
+     * @return The hit rate, from 0 to 1 (0 if there have been no lookups)
+     */
+    public double getHitRate() {
+        long hits = memoryHits.get()+diskHits.get();
+        long total = hits+misses.get();
+        return total==0 ? 0 : (double)hits/total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f%% hit rate (%d memory hits, %d disk hits, %d misses)",
+                100*getHitRate(), getMemoryHits(), getDiskHits(), getMisses());
+    }
+}
@@ -0,0 +1,291 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Gaussian blur behind {@link Picture#gaussianBlur(double)}.
+ *
+ * The blur is separable, so it runs as a horizontal pass into a temporary store followed by a
+ * vertical pass, each over bands of rows in parallel. The vertical pass reads a few bands of
+ * rows (and the kernel's reach either side) at a time, so it holds the same few rows whether
+ * the bands run in parallel or a tiled store has them run one after another. Pixels past the
+ * edges repeat the edge pixel. Up to {@link #BOX_SIGMA} the passes convolve with a sampled
+ * Gaussian kernel whose weights are 16-bit fixed point summing to exactly 1, so the sums stay
+ * in ints. Above it the kernel gets too long, and each pass is three box blurs instead (their
+ * sizes chosen so the variance matches), which costs the same at any sigma and stays within a
+ * few levels of the true Gaussian.
+ */
+final class GaussianBlur {
+
+    /** The sigma above which three box blurs are used instead of the kernel */
+    static final double BOX_SIGMA = 10;
+
+    /** Fixed point bits of the kernel weights */
+    private static final int SHIFT = 16;
+    private static final int ONE = 1<<SHIFT;
+    private static final int HALF = ONE>>1;
+
+    /** Fixed point bits of the box blur reciprocals */
+    private static final int BOX_SHIFT = 22;
+
+    private static final int MAX_KERNELS = 64;
+    private static final Map<Double, int[]> kernels = new ConcurrentHashMap<>();
+
+    private GaussianBlur() {
+    }
+
+    /**
+     * Gets how far the blur reaches from a pixel
+     * @param sigma The standard deviation of the blur
+     * @return The radius, in pixels
+     */
+    static int radius(double sigma) {
+        if (sigma>BOX_SIGMA) {
+            int radius = 0;
+            for (int r : boxes(sigma)) radius += r;
+            return radius;
+        }
+        return (int)Math.ceil(3*sigma);
+    }
+
+    /**
+     * Gets the kernel for a sigma, computing it the first time
+     * @param sigma The standard deviation, at most {@link #BOX_SIGMA}
+     * @return The 2*radius+1 fixed point weights, summing to exactly {@link #ONE}
+     */
+    static int[] kernel(double sigma) {
+        int[] kernel = kernels.get(sigma);
+        if (kernel!=null) return kernel;
+
+        int radius = (int)Math.ceil(3*sigma);
+        double[] g = new double[2*radius+1];
+        double total = 0;
+        for (int i = -radius; i<=radius; i++) {
+            g[i+radius] = Math.exp(-i*i/(2*sigma*sigma));
+            total += g[i+radius];
+        }
+        kernel = new int[g.length];
+        int sum = 0;
+        for (int i = 0; i<g.length; i++) {
+            kernel[i] = (int)Math.round(g[i]/total*ONE);
+            sum += kernel[i];
+        }
+        // put the rounding error in the middle so a flat image stays exactly flat
+        kernel[radius] += ONE-sum;
+
+        if (kernels.size()>=MAX_KERNELS) kernels.clear();
+        kernels.put(sigma, kernel);
+        return kernel;
+    }
+
+    /**
+     * Chooses three box blurs whose combined variance matches a Gaussian's
+     * @param sigma The standard deviation
+     * @return The radii of the three boxes
+     */
+    static int[] boxes(double sigma) {
+        int n = 3;
+        int lower = (int)Math.floor(Math.sqrt(12*sigma*sigma/n+1));
+        if (lower%2==0) lower--;
+        int upper = lower+2;
+        int m = (int)Math.round((12*sigma*sigma-n*lower*lower-4*n*lower-3*n)/(-4.0*lower-4));
+        int[] radii = new int[n];
+        for (int i = 0; i<n; i++) radii[i] = ((i<m ? lower : upper)-1)/2;
+        return radii;
+    }
+
+    /**
+     * Blurs a store
+     * @param src The store to blur. It is not changed
+     * @param sigma The standard deviation of the blur, in pixels
+     * @return A new store holding the result
+     */
+    static PixelStore blur(PixelStore src, double sigma) {
+        if (!(sigma>=0)) throw new RuntimeException("The sigma must be a non-negative number");
+        if (sigma==0) return src.snapshot();
+
+        int width = src.width;
+        int height = src.height;
+        PixelStore temp = src.blank(width, height);
+        PixelStore dst = src.blank(width, height);
+        if (sigma>BOX_SIGMA) {
+            int[] radii = boxes(sigma);
+            int reach = radius(sigma);
+            RowBands.run(height, 1, (y0, y1) -> boxRows(src, temp, y0, y1, radii, reach), src, temp);
+            RowBands.run(height, 2*reach, (y0, y1) -> RowBands.chunks(y0, y1, 2*reach,
+                    (c0, c1) -> boxColumns(temp, dst, c0, c1, radii, reach)), temp, dst);
+        } else {
+            int[] kernel = kernel(sigma);
+            RowBands.run(height, 1, (y0, y1) -> convolveRows(src, temp, y0, y1, kernel), src, temp);
+            RowBands.run(height, kernel.length, (y0, y1) -> RowBands.chunks(y0, y1, kernel.length,
+                    (c0, c1) -> convolveColumns(temp, dst, c0, c1, kernel)), temp, dst);
+        }
+        return dst;
+    }
+
+    /** The horizontal kernel pass over rows y0 to y1 */
+    private static void convolveRows(PixelStore src, PixelStore dst, int y0, int y1, int[] kernel) {
+        int width = src.width;
+        int radius = kernel.length/2;
+        int[] padded = new int[width+2*radius];
+        int[] out = new int[width];
+        for (int y = y0; y<y1; y++) {
+            src.getRow(y, 0, width, padded, radius);
+            for (int i = 0; i<radius; i++) {
+                padded[i] = padded[radius];
+                padded[radius+width+i] = padded[radius+width-1];
+            }
+            for (int x = 0; x<width; x++) {
+                int red = HALF, green = HALF, blue = HALF;
+                for (int k = 0; k<kernel.length; k++) {
+                    int rgb = padded[x+k];
+                    int weight = kernel[k];
+                    red += (rgb>>16 & 0xff)*weight;
+                    green += (rgb>>8 & 0xff)*weight;
+                    blue += (rgb & 0xff)*weight;
+                }
+                out[x] = (red>>SHIFT)<<16 | (green>>SHIFT)<<8 | blue>>SHIFT;
+            }
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+
+    /** The vertical kernel pass over rows y0 to y1 */
+    private static void convolveColumns(PixelStore src, PixelStore dst, int y0, int y1, int[] kernel) {
+        int width = src.width;
+        int radius = kernel.length/2;
+        int[] window = readRows(src, y0-radius, y1+radius);
+        int[] red = new int[width];
+        int[] green = new int[width];
+        int[] blue = new int[width];
+        int[] out = new int[width];
+        for (int y = y0; y<y1; y++) {
+            Arrays.fill(red, HALF);
+            Arrays.fill(green, HALF);
+            Arrays.fill(blue, HALF);
+            for (int k = 0; k<kernel.length; k++) {
+                int start = (y-y0+k)*width;
+                int weight = kernel[k];
+                for (int x = 0; x<width; x++) {
+                    int rgb = window[start+x];
+                    red[x] += (rgb>>16 & 0xff)*weight;
+                    green[x] += (rgb>>8 & 0xff)*weight;
+                    blue[x] += (rgb & 0xff)*weight;
+                }
+            }
+            for (int x = 0; x<width; x++) out[x] = (red[x]>>SHIFT)<<16 | (green[x]>>SHIFT)<<8 | blue[x]>>SHIFT;
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+
+    /**
+     * The three horizontal box passes over rows y0 to y1. Each row is padded by the total
+     * radius first, so every pass sees the edge pixels repeated rather than its own output
+     */
+    private static void boxRows(PixelStore src, PixelStore dst, int y0, int y1, int[] radii, int reach) {
+        int width = src.width;
+        int n = width+2*reach;
+        int[] a = new int[n];
+        int[] b = new int[n];
+        for (int y = y0; y<y1; y++) {
+            src.getRow(y, 0, width, a, reach);
+            Arrays.fill(a, 0, reach, a[reach]);
+            Arrays.fill(a, reach+width, n, a[reach+width-1]);
+            int[] line = a;
+            int[] next = b;
+            for (int radius : radii) {
+                boxLine(line, next, n, radius);
+                int[] t = line;
+                line = next;
+                next = t;
+            }
+            dst.setRow(y, 0, width, line, reach);
+        }
+    }
+
+    /** One box blur of a line; the pixels within radius of the ends are only approximate */
+    private static void boxLine(int[] src, int[] dst, int n, int radius) {
+        int inverse = (1<<BOX_SHIFT)/(2*radius+1);
+        int round = 1<<(BOX_SHIFT-1);
+        int red = 0, green = 0, blue = 0;
+        for (int i = -radius; i<=radius; i++) {
+            int rgb = src[clamp(i, n)];
+            red += rgb>>16 & 0xff;
+            green += rgb>>8 & 0xff;
+            blue += rgb & 0xff;
+        }
+        for (int x = 0; x<n; x++) {
+            dst[x] = (red*inverse+round)>>BOX_SHIFT<<16 | (green*inverse+round)>>BOX_SHIFT<<8 | (blue*inverse+round)>>BOX_SHIFT;
+            int in = src[clamp(x+radius+1, n)];
+            int out = src[clamp(x-radius, n)];
+            red += (in>>16 & 0xff)-(out>>16 & 0xff);
+            green += (in>>8 & 0xff)-(out>>8 & 0xff);
+            blue += (in & 0xff)-(out & 0xff);
+        }
+    }
+
+    /**
+     * The three vertical box passes over rows y0 to y1, run on a window of rows reaching the
+     * total radius past the band (with the edge rows repeated past the picture's edges). The
+     * rows near the window's ends come out approximate, but by the last pass none of them
+     * are in the band
+     */
+    private static void boxColumns(PixelStore src, PixelStore dst, int y0, int y1, int[] radii, int reach) {
+        int width = src.width;
+        int rows = y1-y0+2*reach;
+        int[] a = readRows(src, y0-reach, y1+reach);
+        int[] b = new int[a.length];
+        int[] red = new int[width];
+        int[] green = new int[width];
+        int[] blue = new int[width];
+        for (int radius : radii) {
+            int inverse = (1<<BOX_SHIFT)/(2*radius+1);
+            int round = 1<<(BOX_SHIFT-1);
+            Arrays.fill(red, 0);
+            Arrays.fill(green, 0);
+            Arrays.fill(blue, 0);
+            for (int i = -radius; i<=radius; i++) {
+                int start = clamp(i, rows)*width;
+                for (int x = 0; x<width; x++) {
+                    int rgb = a[start+x];
+                    red[x] += rgb>>16 & 0xff;
+                    green[x] += rgb>>8 & 0xff;
+                    blue[x] += rgb & 0xff;
+                }
+            }
+            for (int r = 0; r<rows; r++) {
+                int start = r*width;
+                int in = clamp(r+radius+1, rows)*width;
+                int out = clamp(r-radius, rows)*width;
+                for (int x = 0; x<width; x++) {
+                    b[start+x] = (red[x]*inverse+round)>>BOX_SHIFT<<16 | (green[x]*inverse+round)>>BOX_SHIFT<<8
+                            | (blue[x]*inverse+round)>>BOX_SHIFT;
+                    int p = a[in+x];
+                    int q = a[out+x];
+                    red[x] += (p>>16 & 0xff)-(q>>16 & 0xff);
+                    green[x] += (p>>8 & 0xff)-(q>>8 & 0xff);
+                    blue[x] += (p & 0xff)-(q & 0xff);
+                }
+            }
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        for (int y = y0; y<y1; y++) dst.setRow(y, 0, width, a, (y-y0+reach)*width);
+    }
+
+    /**
+     * Reads rows from (inclusive) to to (exclusive) into one array, repeating the first and
+     * last rows for rows past the picture's edges
+     */
+    private static int[] readRows(PixelStore src, int from, int to) {
+        int width = src.width;
+        int[] rows = new int[(to-from)*width];
+        for (int y = from; y<to; y++) src.getRow(clamp(y, src.height), 0, width, rows, (y-from)*width);
+        return rows;
+    }
+
+    private static int clamp(int i, int n) {
+        return i<0 ? 0 : i>=n ? n-1 : i;
+    }
+}
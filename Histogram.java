@@ -0,0 +1,191 @@
+/**
+ * How many pixels of a {@link Picture} have each value of red, green, blue and luminance,
+ * along with each channel's mean, variance, smallest and largest value.
+ *
+ * Everything comes from one pass over the pixels: each band of rows counts into its own
+ * histograms, in parallel, and those are added together at the end. The statistics are then
+ * worked out from the 256 counts of each channel rather than from the pixels, in exact
+ * integer sums, so they cost nothing extra and don't lose precision on big pictures.
+ * Luminance is the Rec. 601 weighting 0.299 red + 0.587 green + 0.114 blue, rounded.
+ */
+public class Histogram {
+
+    /** The channels, for {@link #counts(int)} and the statistics */
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    public static final int LUMINANCE = 3;
+
+    private static final int CHANNELS = 4;
+
+    /** The counts of all four channels, 256 per channel */
+    private final long[] counts;
+    private final long pixels;
+
+    private Histogram(long[] counts, long pixels) {
+        this.counts = counts;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Counts the pixels of a store
+     * @param store The store to count
+     * @return Its histogram
+     */
+    static Histogram of(PixelStore store) {
+        long[] total = new long[CHANNELS*256];
+        int width = store.width;
+        RowBands.run(store.height, 1, (y0, y1) -> {
+            long[] local = new long[CHANNELS*256];
+            int[] row = new int[width];
+            for (int y = y0; y<y1; y++) {
+                store.getRow(y, 0, width, row, 0);
+                for (int x = 0; x<width; x++) {
+                    int rgb = row[x];
+                    int r = rgb>>16 & 0xff;
+                    int g = rgb>>8 & 0xff;
+                    int b = rgb & 0xff;
+                    local[r]++;
+                    local[256+g]++;
+                    local[512+b]++;
+                    local[768+luminance(r, g, b)]++;
+                }
+            }
+            synchronized (total) {
+                for (int i = 0; i<total.length; i++) total[i] += local[i];
+            }
+        }, store);
+        return new Histogram(total, (long)width*store.height);
+    }
+
+    /**
+     * Gets the luminance of a color
+     * @param r The red value
+     * @param g The green value
+     * @param b The blue value
+     * @return The luminance, 0 to 255
+     */
+    static int luminance(int r, int g, int b) {
+        return (77*r+150*g+29*b+128)>>8;
+    }
+
+    /**
+     * Gets the number of pixels counted
+     * @return The width times the height of the picture
+     */
+    public long pixels() {
+        return pixels;
+    }
+
+    /**
+     * Gets the counts of a channel
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMINANCE}
+     * @return A new array of 256 counts, the number of pixels with each value of the channel
+     */
+    public long[] counts(int channel) {
+        long[] copy = new long[256];
+        System.arraycopy(counts, offset(channel), copy, 0, 256);
+        return copy;
+    }
+
+    /**
+     * Gets the mean of a channel
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMINANCE}
+     * @return The mean value, 0 to 255
+     */
+    public double mean(int channel) {
+        int off = offset(channel);
+        long sum = 0;
+        for (int v = 0; v<256; v++) sum += v*counts[off+v];
+        return (double)sum/pixels;
+    }
+
+    /**
+     * Gets the variance of a channel
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMINANCE}
+     * @return The population variance, the mean squared distance from the mean
+     */
+    public double variance(int channel) {
+        int off = offset(channel);
+        long sum = 0;
+        long squares = 0;
+        for (int v = 0; v<256; v++) {
+            sum += v*counts[off+v];
+            squares += (long)v*v*counts[off+v];
+        }
+        // in doubles, since n*squares can overflow a long on a huge picture
+        double n = pixels;
+        return Math.max(0, (n*squares-(double)sum*sum)/(n*n));
+    }
+
+    /**
+     * Gets the standard deviation of a channel
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMINANCE}
+     * @return The square root of the {@link #variance(int)}
+     */
+    public double standardDeviation(int channel) {
+        return Math.sqrt(variance(channel));
+    }
+
+    /**
+     * Gets the smallest value of a channel
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMINANCE}
+     * @return The smallest value any pixel has
+     */
+    public int min(int channel) {
+        int off = offset(channel);
+        int v = 0;
+        while (counts[off+v]==0) v++;
+        return v;
+    }
+
+    /**
+     * Gets the largest value of a channel
+     * @param channel {@link #RED}, {@link #GREEN}, {@link #BLUE} or {@link #LUMINANCE}
+     * @return The largest value any pixel has
+     */
+    public int max(int channel) {
+        int off = offset(channel);
+        int v = 255;
+        while (counts[off+v]==0) v--;
+        return v;
+    }
+
+    /**
+     * Makes the lookup table that equalizes a channel: each value maps to where it falls in
+     * the channel's cumulative distribution, stretched so the smallest value present maps to 0
+     * and the largest to 255
+     * @param channel {@link #RED}, {@link #GREEN} or {@link #BLUE}
+     * @return The 256 new values
+     */
+    int[] equalizer(int channel) {
+        int off = offset(channel);
+        int[] table = new int[256];
+        long below = counts[off+min(channel)];
+        long spread = pixels-below;
+        long cumulative = 0;
+        for (int v = 0; v<256; v++) {
+            cumulative += counts[off+v];
+            // a flat channel has nothing to spread out, so it is left alone
+            table[v] = spread==0 ? v : (int)Math.max(0, ((cumulative-below)*255+spread/2)/spread);
+        }
+        return table;
+    }
+
+    private static int offset(int channel) {
+        if (channel<0 || channel>=CHANNELS) throw new RuntimeException("No channel "+channel+" in a histogram");
+        return channel*256;
+    }
+
+    @Override
+    public String toString() {
+        String[] names = {"red", "green", "blue", "luminance"};
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c<CHANNELS; c++) {
+            if (c>0) text.append('\n');
+            text.append(String.format("%s: mean %.2f, sd %.2f, min %d, max %d",
+                    names[c], mean(c), standardDeviation(c), min(c), max(c)));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A process-wide cache of decoded image files, used by {@link Picture#Picture(String)} and
+ * {@link Picture#load(Path)} so loading the same file again doesn't decode it again.
+ *
+ * Entries are keyed on the file's absolute path and checked against its modification time and
+ * size on every load, so a file that has changed on disk is decoded afresh. Each load hands
+ * out a copy-on-write snapshot of the cached pixels, so Pictures loaded from the same file
+ * can't change each other or the cache. The cache is bounded by the total size of the decoded
+ * images (4 bytes per pixel) and drops the least recently loaded ones first.
+ */
+public final class ImageCache {
+
+    /** A decoded file, and what the file looked like when it was decoded */
+    private static final class Entry {
+        final long modified;
+        final long size;
+        final PixelStore pixels;
+
+        Entry(long modified, long size, PixelStore pixels) {
+            this.modified = modified;
+            this.size = size;
+            this.pixels = pixels;
+        }
+
+        long bytes() {
+            return 4L*pixels.width*pixels.height;
+        }
+    }
+
+    private static final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<Path, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private static long capacity = Runtime.getRuntime().maxMemory()/4;
+    private static long bytes;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private ImageCache() {
+    }
+
+    /**
+     * Loads an image file, decoding it only if it isn't cached or has changed since it was cached
+     * @param file The image file
+     * @param decode Decodes the file when it has to be
+     * @return A store of the image's pixels that the caller owns
+     */
+    static PixelStore load(File file, Function<File, PixelStore> decode) {
+        if (!file.exists()) throw new RuntimeException("No picture at the location "+file.getPath()+"!");
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+
+        while (true) {
+            synchronized (ImageCache.class) {
+                Entry entry = entries.get(path);
+                if (entry!=null && entry.modified==modified && entry.size==size) {
+                    hits.incrementAndGet();
+                    return entry.pixels.snapshot();
+                }
+            }
+
+            CompletableFuture<Entry> mine = new CompletableFuture<>();
+            CompletableFuture<Entry> running = loading.putIfAbsent(path, mine);
+            if (running!=null) {
+                // another thread is decoding this file; use its result if it's the same version
+                Entry entry;
+                try {
+                    entry = running.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+                }
+                if (entry.modified==modified && entry.size==size) {
+                    hits.incrementAndGet();
+                    return entry.pixels.snapshot();
+                }
+                continue;
+            }
+
+            try {
+                misses.incrementAndGet();
+                Entry entry = new Entry(modified, size, decode.apply(file));
+                put(path, entry);
+                mine.complete(entry);
+                return entry.pixels.snapshot();
+            } catch (RuntimeException | Error e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(path, mine);
+            }
+        }
+    }
+
+    private static synchronized void put(Path path, Entry entry) {
+        if (entry.bytes()>capacity) {
+            Entry old = entries.remove(path);
+            if (old!=null) bytes -= old.bytes();
+            return;
+        }
+        Entry old = entries.put(path, entry);
+        if (old!=null) bytes -= old.bytes();
+        bytes += entry.bytes();
+        trim();
+    }
+
+    private static void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes>capacity && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * Sets the most bytes of decoded images to keep. The default is a quarter of the maximum heap
+     * @param capacity The capacity, in bytes; 0 turns the cache off
+     */
+    public static synchronized void setCapacity(long capacity) {
+        if (capacity<0) throw new RuntimeException("The capacity can't be negative");
+        ImageCache.capacity = capacity;
+        trim();
+    }
+
+    /**
+     * Drops every cached image
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** @return The number of loads that were answered from the cache */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /** @return The number of loads that had to decode the file */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /** @return The bytes of decoded images currently cached */
+    public static synchronized long getSize() {
+        return bytes;
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.Arrays;
+
+/**
+ * The weights of a convolution, for {@link Picture#convolve(Kernel, BorderMode)}. A kernel is
+ * laid over each pixel's neighbourhood as written (it isn't flipped), with its middle element
+ * over the pixel; for even sizes the middle is the element just after the halfway point.
+ *
+ * Kernels are either integer, with a divisor, or float. Integer kernels are summed exactly in
+ * ints, so results are reproducible to the last bit (except for kernels big enough to be run
+ * through a Fourier transform, which is done in float). Kernels that are the product of a column
+ * and a row (like a box or a Gaussian) are detected when they are made and run as two
+ * one-dimensional passes, which costs width+height per pixel instead of width*height.
+ */
+public final class Kernel {
+
+    /** The most the absolute values of an integer kernel may add up to, so sums of 255s fit an int */
+    static final long MAX_INT_WEIGHT = Integer.MAX_VALUE/255;
+
+    /** The relative error allowed when checking whether a float kernel is separable */
+    private static final float SEPARABLE_TOLERANCE = 1e-6f;
+
+    final int width;
+    final int height;
+
+    /** The weights, row by row; for integer kernels these are the ints divided by the divisor */
+    final float[] weights;
+
+    /** The integer weights, row by row, or null for a float kernel */
+    final int[] ints;
+    final int divisor;
+
+    /** For separable kernels: weights = column x row (and / divisor for integer kernels). null if not separable */
+    final float[] row;
+    final float[] column;
+    final int[] intRow;
+    final int[] intColumn;
+    final int separableDivisor;
+
+    private Kernel(int width, int height, float[] weights, int[] ints, int divisor) {
+        this.width = width;
+        this.height = height;
+        this.weights = weights;
+        this.ints = ints;
+        this.divisor = divisor;
+
+        // a kernel is separable if it's rank one: every row is a multiple of the row holding the largest weight
+        int pivot = 0;
+        for (int i = 1; i<weights.length; i++) if (Math.abs(weights[i])>Math.abs(weights[pivot])) pivot = i;
+        int p = pivot/width;
+        int q = pivot%width;
+        boolean separable = width>1 && height>1 && weights[pivot]!=0;
+
+        if (separable && ints!=null) {
+            long pq = ints[pivot];
+            long rowSum = 0;
+            long columnSum = 0;
+            for (int i = 0; i<height && separable; i++) {
+                for (int j = 0; j<width; j++) {
+                    if ((long)ints[i*width+j]*pq!=(long)ints[i*width+q]*ints[p*width+j]) {
+                        separable = false;
+                        break;
+                    }
+                }
+            }
+            int[] intRow = new int[width];
+            int[] intColumn = new int[height];
+            for (int j = 0; j<width; j++) {
+                // keep the divisor positive by moving the pivot's sign into the row
+                intRow[j] = pq<0 ? -ints[p*width+j] : ints[p*width+j];
+                rowSum += Math.abs(intRow[j]);
+            }
+            for (int i = 0; i<height; i++) {
+                intColumn[i] = ints[i*width+q];
+                columnSum += Math.abs(intColumn[i]);
+            }
+            long separableDivisor = divisor*Math.abs(pq);
+            // the column pass sums row pass results, so the two passes' weights multiply
+            if (rowSum*columnSum>MAX_INT_WEIGHT || separableDivisor>Integer.MAX_VALUE) separable = false;
+            this.intRow = separable ? intRow : null;
+            this.intColumn = separable ? intColumn : null;
+            this.separableDivisor = separable ? (int)separableDivisor : 0;
+            this.row = null;
+            this.column = null;
+        } else if (separable) {
+            float pq = weights[pivot];
+            float tolerance = SEPARABLE_TOLERANCE*Math.abs(pq);
+            float[] row = new float[width];
+            float[] column = new float[height];
+            for (int j = 0; j<width; j++) row[j] = weights[p*width+j]/pq;
+            for (int i = 0; i<height; i++) column[i] = weights[i*width+q];
+            for (int i = 0; i<height && separable; i++) {
+                for (int j = 0; j<width; j++) {
+                    if (Math.abs(weights[i*width+j]-column[i]*row[j])>tolerance) {
+                        separable = false;
+                        break;
+                    }
+                }
+            }
+            this.row = separable ? row : null;
+            this.column = separable ? column : null;
+            this.intRow = null;
+            this.intColumn = null;
+            this.separableDivisor = 0;
+        } else {
+            this.row = null;
+            this.column = null;
+            this.intRow = null;
+            this.intColumn = null;
+            this.separableDivisor = 0;
+        }
+    }
+
+    /**
+     * Creates a float kernel
+     * @param weights The weights, as a rectangular array of rows
+     * @return The kernel
+     */
+    public static Kernel of(float[][] weights) {
+        int width = checkShape(weights.length, weights.length==0 ? 0 : weights[0].length);
+        float[] flat = new float[weights.length*width];
+        for (int i = 0; i<weights.length; i++) {
+            if (weights[i].length!=width) throw new RuntimeException("Kernels must be rectangles. weights[0].length!=weights["+i+"].length!");
+            for (int j = 0; j<width; j++) {
+                if (!Float.isFinite(weights[i][j])) throw new RuntimeException("Kernel weights must be finite numbers");
+                flat[i*width+j] = weights[i][j];
+            }
+        }
+        return new Kernel(width, weights.length, flat, null, 1);
+    }
+
+    /**
+     * Creates an integer kernel. Each result is the weighted sum divided by the divisor
+     * @param weights The weights, as a rectangular array of rows
+     * @param divisor The divisor, usually the sum of the weights. Must be positive
+     * @return The kernel
+     */
+    public static Kernel of(int[][] weights, int divisor) {
+        if (divisor<=0) throw new RuntimeException("The divisor must be positive");
+        int width = checkShape(weights.length, weights.length==0 ? 0 : weights[0].length);
+        int[] ints = new int[weights.length*width];
+        float[] flat = new float[ints.length];
+        long total = 0;
+        for (int i = 0; i<weights.length; i++) {
+            if (weights[i].length!=width) throw new RuntimeException("Kernels must be rectangles. weights[0].length!=weights["+i+"].length!");
+            for (int j = 0; j<width; j++) {
+                ints[i*width+j] = weights[i][j];
+                flat[i*width+j] = (float)weights[i][j]/divisor;
+                total += Math.abs((long)weights[i][j]);
+            }
+        }
+        if (total>MAX_INT_WEIGHT) throw new RuntimeException("The kernel's weights are too large");
+        return new Kernel(width, weights.length, flat, ints, divisor);
+    }
+
+    /**
+     * Creates a kernel that averages a square neighbourhood
+     * @param radius How far the neighbourhood reaches from the middle pixel
+     * @return The (2*radius+1) square kernel of ones
+     */
+    public static Kernel box(int radius) {
+        if (radius<0) throw new RuntimeException("The radius can't be negative");
+        int size = 2*radius+1;
+        int[][] weights = new int[size][size];
+        for (int[] row : weights) Arrays.fill(row, 1);
+        return of(weights, size*size);
+    }
+
+    private static int checkShape(int height, int width) {
+        if (height==0 || width==0) throw new RuntimeException("Can't have an empty kernel!");
+        return width;
+    }
+
+    /** @return The width of the kernel */
+    public int getWidth() {
+        return width;
+    }
+
+    /** @return The height of the kernel */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets a weight, divided by the divisor for integer kernels
+     * @param x The column
+     * @param y The row
+     * @return The weight
+     */
+    public float getWeight(int x, int y) {
+        return weights[y*width+x];
+    }
+
+    /** @return Whether the kernel holds integers and a divisor */
+    public boolean isInteger() {
+        return ints!=null;
+    }
+
+    /** @return Whether the kernel runs as separate row and column passes */
+    public boolean isSeparable() {
+        return row!=null || intRow!=null;
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link PixelStore} backed by a memory-mapped raw picture file, so opening one costs no
+ * decoding at all: pixels are read straight out of the page cache the first time they are used.
+ *
+ * The raw format is a 16 byte header followed by the rows, top to bottom, with 3 bytes (red,
+ * green, blue) per pixel and no padding:
+ * <pre>
+ * offset 0   4 bytes  magic "RPIC"
+ * offset 4   int      format version (1)
+ * offset 8   int      width
+ * offset 12  int      height
+ * </pre>
+ * All ints are big-endian. Files over 1GB ({@link #CHUNK_BYTES}) are mapped as several buffers
+ * of whole rows.
+ */
+class MappedPixelStore extends PixelStore {
+
+    /** The first four bytes of every raw picture file */
+    static final int MAGIC = 'R'<<24 | 'P'<<16 | 'I'<<8 | 'C';
+
+    /** The format version written into new files */
+    static final int VERSION = 1;
+
+    /** The size of the header, in bytes */
+    static final int HEADER_BYTES = 16;
+
+    /** The most bytes mapped by one buffer; kept well under the 2GB a buffer can index */
+    private static final long CHUNK_BYTES = 1L<<30;
+
+    private final MappedByteBuffer[] chunks;
+    private final int rowsPerChunk;
+    private final int rowBytes;
+    private final boolean writable;
+
+    private MappedPixelStore(int width, int height, MappedByteBuffer[] chunks, int rowsPerChunk, boolean writable) {
+        super(width, height);
+        this.chunks = chunks;
+        this.rowsPerChunk = rowsPerChunk;
+        this.rowBytes = 3*width;
+        this.writable = writable;
+    }
+
+    /**
+     * Maps a raw picture file
+     * @param path The file to open
+     * @param writable Whether changes to the store should be written back to the file
+     * @return The store
+     */
+    static MappedPixelStore open(Path path, boolean writable) {
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        try (FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position())<0) throw new IOException(path+" is too short to be a raw picture");
+            }
+            header.flip();
+            if (header.getInt()!=MAGIC) throw new IOException(path+" is not a raw picture");
+            int version = header.getInt();
+            if (version!=VERSION) throw new IOException(path+" is raw picture version "+version+", expected "+VERSION);
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width<=0 || height<=0) throw new IOException(path+" has an empty image ("+width+"x"+height+")");
+            long rowBytes = 3L*width;
+            if (channel.size()<HEADER_BYTES+rowBytes*height) throw new IOException(path+" is truncated");
+
+            int rowsPerChunk = (int)Math.max(1, Math.min(height, CHUNK_BYTES/rowBytes));
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(height+rowsPerChunk-1)/rowsPerChunk];
+            for (int i = 0; i<chunks.length; i++) {
+                int rows = Math.min(rowsPerChunk, height-i*rowsPerChunk);
+                chunks[i] = channel.map(mode, HEADER_BYTES+rowBytes*i*rowsPerChunk, rowBytes*rows);
+            }
+            return new MappedPixelStore(width, height, chunks, rowsPerChunk, writable);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes a store to a raw picture file, replacing the file if it exists. The pixels go to
+     * a temporary file next to it, which is then moved into place, so a store mapping the old
+     * file (even the one being written) keeps reading it unharmed
+     * @param store The pixels to write
+     * @param path The file to write
+     */
+    static void write(PixelStore store, Path path) {
+        try {
+            Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "raw", ".tmp");
+            try {
+                writeTo(store, temp);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static void writeTo(PixelStore store, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(store.width).putInt(store.height).flip();
+            while (header.hasRemaining()) channel.write(header);
+
+            int rowBytes = 3*store.width;
+            int rowsPerWrite = Math.max(1, (1<<20)/rowBytes);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(rowsPerWrite*rowBytes);
+            int[] row = new int[store.width];
+            for (int y = 0; y<store.height; y++) {
+                store.getRow(y, 0, store.width, row, 0);
+                for (int rgb : row) buffer.put((byte)(rgb>>16)).put((byte)(rgb>>8)).put((byte)rgb);
+                if (!buffer.hasRemaining() || y==store.height-1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces any changes made through this store out to the file
+     */
+    @Override
+    void flush() {
+        if (writable) for (MappedByteBuffer chunk : chunks) chunk.force();
+    }
+
+    private void checkWritable() {
+        if (!writable) throw new RuntimeException("This Picture was opened read-only");
+    }
+
+    @Override
+    int get(int x, int y) {
+        MappedByteBuffer chunk = chunks[y/rowsPerChunk];
+        int i = (y%rowsPerChunk)*rowBytes+3*x;
+        return (chunk.get(i)&0xff)<<16 | (chunk.get(i+1)&0xff)<<8 | (chunk.get(i+2)&0xff);
+    }
+
+    @Override
+    void set(int x, int y, int rgb) {
+        checkWritable();
+        MappedByteBuffer chunk = chunks[y/rowsPerChunk];
+        int i = (y%rowsPerChunk)*rowBytes+3*x;
+        chunk.put(i, (byte)(rgb>>16));
+        chunk.put(i+1, (byte)(rgb>>8));
+        chunk.put(i+2, (byte)rgb);
+    }
+
+    @Override
+    void getRow(int y, int x, int w, int[] dst, int off) {
+        ByteBuffer chunk = chunks[y/rowsPerChunk].duplicate();
+        chunk.position((y%rowsPerChunk)*rowBytes+3*x);
+        byte[] bytes = new byte[3*w];
+        chunk.get(bytes);
+        for (int i = 0, b = 0; i<w; i++, b += 3) {
+            dst[off+i] = (bytes[b]&0xff)<<16 | (bytes[b+1]&0xff)<<8 | (bytes[b+2]&0xff);
+        }
+    }
+
+    @Override
+    void setRow(int y, int x, int w, int[] src, int off) {
+        checkWritable();
+        byte[] bytes = new byte[3*w];
+        for (int i = 0, b = 0; i<w; i++, b += 3) {
+            int rgb = src[off+i];
+            bytes[b] = (byte)(rgb>>16);
+            bytes[b+1] = (byte)(rgb>>8);
+            bytes[b+2] = (byte)rgb;
+        }
+        ByteBuffer chunk = chunks[y/rowsPerChunk].duplicate();
+        chunk.position((y%rowsPerChunk)*rowBytes+3*x);
+        chunk.put(bytes);
+    }
+
+    /**
+     * A read-only store can share its mapping with the snapshot since neither side can change
+     * it. A writable one is copied into a {@link BandedPixelStore}, since later writes through
+     * this store must not show up in the snapshot
+     */
+    @Override
+    PixelStore snapshot() {
+        if (!writable) return new MappedPixelStore(width, height, chunks, rowsPerChunk, false);
+        BandedPixelStore copy = new BandedPixelStore(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y<height; y++) {
+            getRow(y, 0, width, row, 0);
+            copy.setRow(y, 0, width, row, 0);
+        }
+        return copy;
+    }
+}
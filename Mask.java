@@ -0,0 +1,396 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A black and white image stored one bit per pixel: edge maps, chromakey mattes, hidden
+ * messages, and selections for {@link Picture#applyMasked(java.util.function.UnaryOperator, Mask)}.
+ *
+ * Each row is packed into 64-bit words, pixel x in bit x%64 of word x/64, so logic operations
+ * and counting work on 64 pixels at a time. The bits past the right edge of each row are
+ * always zero. A set bit is drawn black by {@link #toPicture()}, as edgeDetection and decode
+ * draw their results.
+ */
+public class Mask {
+
+    private final int width;
+    private final int height;
+
+    /** The number of words in each row */
+    final int stride;
+
+    /** The rows of bits, each {@link #stride} words long */
+    final long[] words;
+
+    /**
+     * Creates a Mask with no pixels set
+     * @param width The width of the Mask
+     * @param height The height of the Mask
+     */
+    public Mask(int width, int height) {
+        if (width<=0 || height<=0) throw new RuntimeException("Can't have an empty mask!");
+        this.width = width;
+        this.height = height;
+        this.stride = (width+63)>>>6;
+        this.words = new long[stride*height];
+    }
+
+    /**
+     * Creates a copy of a Mask
+     * @param mask The Mask to copy
+     */
+    public Mask(Mask mask) {
+        this(mask.width, mask.height);
+        System.arraycopy(mask.words, 0, words, 0, words.length);
+    }
+
+    /**
+     * Creates a Mask from a Picture, setting the pixels closer to black than to white
+     * @param picture The Picture to read
+     * @return The Mask
+     */
+    public static Mask of(Picture picture) {
+        return of(picture, rgb -> (rgb>>16 & 0xff)+(rgb>>8 & 0xff)+(rgb & 0xff)<384);
+    }
+
+    /**
+     * Creates a Mask from a Picture, setting the pixels whose colors pass a test
+     * @param picture The Picture to read
+     * @param test A test of a packed 0xRRGGBB color
+     * @return The Mask
+     */
+    public static Mask of(Picture picture, IntPredicate test) {
+        PixelStore store = picture.store();
+        Mask mask = new Mask(store.width, store.height);
+        int[] row = new int[store.width];
+        for (int y = 0; y<store.height; y++) {
+            store.getRow(y, 0, store.width, row, 0);
+            int start = y*mask.stride;
+            for (int x = 0; x<store.width; x++) {
+                if (test.test(row[x])) mask.words[start+(x>>>6)] |= 1L<<x;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Draws the Mask as a Picture, black where it is set and white elsewhere
+     * @return The Picture
+     */
+    public Picture toPicture() {
+        PixelStore store = new BandedPixelStore(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y<height; y++) {
+            int start = y*stride;
+            for (int x = 0; x<width; x++) row[x] = (words[start+(x>>>6)]>>>x & 1)!=0 ? 0x000000 : 0xffffff;
+            store.setRow(y, 0, width, row, 0);
+        }
+        return new Picture(store);
+    }
+
+    /** @return The width of the Mask */
+    public int getWidth() {
+        return width;
+    }
+
+    /** @return The height of the Mask */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets whether a pixel is set
+     * @param x The x location
+     * @param y The y location
+     * @return true if the pixel is set
+     */
+    public boolean get(int x, int y) {
+        if (x>=width || y>=height || x<0 || y<0) throw new RuntimeException("No pixel at ("+x+", "+y+")");
+        return (words[y*stride+(x>>>6)]>>>x & 1)!=0;
+    }
+
+    /**
+     * Sets or clears a pixel
+     * @param x The x location
+     * @param y The y location
+     * @param set Whether the pixel should be set
+     */
+    public void set(int x, int y, boolean set) {
+        if (x>=width || y>=height || x<0 || y<0) throw new RuntimeException("No pixel at ("+x+", "+y+")");
+        if (set) words[y*stride+(x>>>6)] |= 1L<<x;
+        else words[y*stride+(x>>>6)] &= ~(1L<<x);
+    }
+
+    /**
+     * Sets every pixel in a rectangle, clipped to the Mask
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @return This Mask
+     */
+    public Mask fill(int x, int y, int w, int h) {
+        int x0 = Math.max(0, x);
+        int x1 = Math.min(width, x+w);
+        for (int r = Math.max(0, y); r<Math.min(height, y+h); r++) setRange(r*stride, x0, x1);
+        return this;
+    }
+
+    /** Sets bits x0 (inclusive) to x1 (exclusive) of the row starting at word start */
+    private void setRange(int start, int x0, int x1) {
+        for (int i = x0>>>6; x0<x1; i++) {
+            int end = Math.min(x1, (i+1)<<6);
+            // bits x0..end-1 of this word
+            long bits = (end-x0==64 ? -1L : (1L<<(end-x0))-1)<<x0;
+            words[start+i] |= bits;
+            x0 = end;
+        }
+    }
+
+    private void checkSize(Mask other) {
+        if (other.width!=width || other.height!=height) {
+            throw new RuntimeException("Masks must be the same size: "+width+"x"+height+" and "+other.width+"x"+other.height);
+        }
+    }
+
+    /**
+     * Keeps only the pixels set in both this Mask and another
+     * @param other The other Mask, which must be the same size
+     * @return This Mask
+     */
+    public Mask and(Mask other) {
+        checkSize(other);
+        for (int i = 0; i<words.length; i++) words[i] &= other.words[i];
+        return this;
+    }
+
+    /**
+     * Sets the pixels set in either this Mask or another
+     * @param other The other Mask, which must be the same size
+     * @return This Mask
+     */
+    public Mask or(Mask other) {
+        checkSize(other);
+        for (int i = 0; i<words.length; i++) words[i] |= other.words[i];
+        return this;
+    }
+
+    /**
+     * Keeps the pixels set in exactly one of this Mask and another
+     * @param other The other Mask, which must be the same size
+     * @return This Mask
+     */
+    public Mask xor(Mask other) {
+        checkSize(other);
+        for (int i = 0; i<words.length; i++) words[i] ^= other.words[i];
+        return this;
+    }
+
+    /**
+     * Flips every pixel
+     * @return This Mask
+     */
+    public Mask not() {
+        for (int i = 0; i<words.length; i++) words[i] = ~words[i];
+        clearPadding();
+        return this;
+    }
+
+    /** Clears the bits past the right edge of each row */
+    private void clearPadding() {
+        if ((width&63)==0) return;
+        long keep = (1L<<(width&63))-1;
+        for (int i = stride-1; i<words.length; i += stride) words[i] &= keep;
+    }
+
+    /**
+     * Counts the pixels that are set
+     * @return The count
+     */
+    public long count() {
+        long count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        return count;
+    }
+
+    /**
+     * Gets whether a row has any pixels set, so callers can skip it
+     * @param y The row
+     * @return true if no pixel in the row is set
+     */
+    boolean rowEmpty(int y) {
+        for (int i = y*stride; i<(y+1)*stride; i++) if (words[i]!=0) return false;
+        return true;
+    }
+
+    /**
+     * Finds the columns a range of rows has pixels set in
+     * @param y0 The first row
+     * @param y1 The row after the last row
+     * @return The first set column and the column after the last, or null if none are set
+     */
+    int[] columns(int y0, int y1) {
+        int first = stride;
+        int last = -1;
+        for (int y = y0; y<y1; y++) {
+            int start = y*stride;
+            for (int i = 0; i<first; i++) {
+                if (words[start+i]!=0) {
+                    first = i;
+                    break;
+                }
+            }
+            for (int i = stride-1; i>last; i--) {
+                if (words[start+i]!=0) {
+                    last = i;
+                    break;
+                }
+            }
+        }
+        if (last<0) return null;
+        long low = 0;
+        long high = 0;
+        for (int y = y0; y<y1; y++) {
+            low |= words[y*stride+first];
+            high |= words[y*stride+last];
+        }
+        return new int[] {first<<6 | Long.numberOfTrailingZeros(low), (last<<6)+64-Long.numberOfLeadingZeros(high)};
+    }
+
+    /**
+     * Sets each pixel if any pixel within a rectangle around it is set. Pixels past the edges
+     * count as clear
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @return A new Mask holding the result
+     */
+    public Mask dilate(int w, int h) {
+        return morph(w, h, true);
+    }
+
+    /**
+     * Keeps each pixel set only if every pixel within a rectangle around it is set. Pixels
+     * past the edges count as set
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @return A new Mask holding the result
+     */
+    public Mask erode(int w, int h) {
+        return morph(w, h, false);
+    }
+
+    /**
+     * Erodes then dilates, which clears specks smaller than the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @return A new Mask holding the result
+     */
+    public Mask open(int w, int h) {
+        return erode(w, h).dilate(w, h);
+    }
+
+    /**
+     * Dilates then erodes, which fills holes smaller than the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @return A new Mask holding the result
+     */
+    public Mask close(int w, int h) {
+        return dilate(w, h).erode(w, h);
+    }
+
+    /**
+     * Dilation and erosion by a rectangle anchored as in {@link Morphology}. Erosion is a
+     * dilation of the inverse, inverted back. Rows are dilated by ORing shifted copies of
+     * themselves, doubling the span each time, so a width of w costs log2(w) passes over a
+     * row's words. Columns use van Herk and Gil-Werman's running extrema over whole rows
+     * of words, three ORs per word whatever the height
+     */
+    private Mask morph(int w, int h, boolean dilate) {
+        if (w<=0 || h<=0) throw new RuntimeException("The structuring element can't be empty");
+        Mask src = dilate ? this : new Mask(this).not();
+        Mask across = new Mask(width, height);
+        // rows are worked on with a margin of clear words either side, so windows that start
+        // left of the edge (or end right of it) still have somewhere to start
+        int margin = (w>>>6)+1;
+        int n = stride+2*margin;
+        long[] span = new long[n];
+        long[] power = new long[n];
+        long[] shifted = new long[n];
+        long[] row = new long[stride];
+        for (int y = 0; y<height; y++) {
+            // span collects the OR of bits x to x+length-1, power of bits x to x+p-1
+            Arrays.fill(power, 0);
+            System.arraycopy(src.words, y*stride, power, margin, stride);
+            Arrays.fill(span, 0);
+            int length = 0;
+            for (int p = 1; p<=w; p <<= 1) {
+                if ((w&p)!=0) {
+                    shiftDown(power, length, shifted);
+                    for (int i = 0; i<n; i++) span[i] |= shifted[i];
+                    length += p;
+                }
+                if (p<<1<=w) {
+                    shiftDown(power, p, shifted);
+                    for (int i = 0; i<n; i++) power[i] |= shifted[i];
+                }
+            }
+            // the window for x starts at x-w/2, which is bit margin*64+x-w/2 of span
+            shiftDown(span, (margin<<6)-w/2, row);
+            System.arraycopy(row, 0, across.words, y*stride, stride);
+        }
+        across.clearPadding();
+
+        Mask result = new Mask(width, height);
+        int top = h/2;
+        int blocks = (height+h-1+h-1)/h*h;
+        long[] forward = new long[blocks*stride];
+        long[] backward = new long[blocks*stride];
+        for (int i = 0; i<blocks; i++) {
+            int y = i-top;
+            if (y>=0 && y<height) System.arraycopy(across.words, y*stride, forward, i*stride, stride);
+        }
+        System.arraycopy(forward, 0, backward, 0, forward.length);
+        for (int i = 0; i<blocks; i++) {
+            if (i%h==0) continue;
+            for (int j = 0; j<stride; j++) forward[i*stride+j] |= forward[(i-1)*stride+j];
+        }
+        for (int i = blocks-1; i>=0; i--) {
+            if (i%h==h-1) continue;
+            for (int j = 0; j<stride; j++) backward[i*stride+j] |= backward[(i+1)*stride+j];
+        }
+        for (int y = 0; y<height; y++) {
+            for (int j = 0; j<stride; j++) {
+                result.words[y*stride+j] = backward[y*stride+j] | forward[(y+h-1)*stride+j];
+            }
+        }
+        return dilate ? result : result.not();
+    }
+
+    /** dst[x] = src[x+s] for a row of bits: moves every bit s places toward the left edge */
+    private static void shiftDown(long[] src, int s, long[] dst) {
+        int words = s>>>6;
+        int bits = s&63;
+        for (int i = 0; i<dst.length; i++) {
+            long lo = i+words<src.length ? src[i+words] : 0;
+            long hi = i+words+1<src.length ? src[i+words+1] : 0;
+            dst[i] = bits==0 ? lo : lo>>>bits | hi<<(64-bits);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Mask)) return false;
+        Mask other = (Mask)o;
+        return other.width==width && other.height==height && Arrays.equals(other.words, words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31*(31*width+height)+Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "Mask ("+width+"x"+height+", "+count()+" set)";
+    }
+}
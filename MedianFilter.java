@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * The median filter behind {@link Picture#medianFilter(int)}, in constant time per pixel
+ * whatever the radius (Perreault and Hébert's method).
+ *
+ * Each channel is filtered on its own. Every column keeps a histogram of the 2*radius+1
+ * values above and below the current row, which moves down a row by removing one value and
+ * adding one. The window's histogram is the sum of 2*radius+1 column histograms and moves
+ * right by adding one and removing one. Histograms are two-level, 16 coarse bins over 256
+ * fine ones: the coarse window histogram is kept up to date at every pixel, and each 16-bin
+ * slice of the fine one is only brought up to date when the median falls in it. Pixels past
+ * the edges repeat the edge pixel. Bands of rows run in parallel, each starting its column
+ * histograms afresh; on a store that can't be shared between threads the same bands run one
+ * after another, so only a band's worth of output is held at once.
+ */
+final class MedianFilter {
+
+    private MedianFilter() {
+    }
+
+    /**
+     * Median-filters a store
+     * @param src The store to filter. It is not changed
+     * @param radius How far the square window reaches from each pixel
+     * @return A new store holding the result
+     */
+    static PixelStore filter(PixelStore src, int radius) {
+        if (radius<0) throw new RuntimeException("The radius can't be negative");
+        if (radius==0) return src.snapshot();
+        PixelStore dst = src.blank(src.width, src.height);
+        // starting a band costs a full window of rows, so make bands a few windows tall; a band
+        // keeps its output until all three channels are done, so a tiled store's single band
+        // is cut into chunks of the same size
+        RowBands.run(src.height, 4*radius, (y0, y1) -> RowBands.chunks(y0, y1, 4*radius,
+                (c0, c1) -> band(src, dst, radius, c0, c1)), src, dst);
+        return dst;
+    }
+
+    private static void band(PixelStore src, PixelStore dst, int radius, int y0, int y1) {
+        int width = src.width;
+        int height = src.height;
+        int size = 2*radius+1;
+        int columns = width+2*radius;
+        int target = size*size/2+1;
+
+        int[] colFine = new int[columns*256];
+        int[] colCoarse = new int[columns*16];
+        int[] fine = new int[256];
+        int[] coarse = new int[16];
+        int[] last = new int[16];
+        int[] row = new int[width];
+        int[] old = new int[width];
+        int[] out = new int[(y1-y0)*width];
+
+        for (int shift = 16; shift>=0; shift -= 8) {
+            Arrays.fill(colFine, 0);
+            Arrays.fill(colCoarse, 0);
+            for (int y = y0-radius; y<=y0+radius; y++) {
+                src.getRow(clamp(y, height), 0, width, row, 0);
+                for (int j = 0; j<columns; j++) {
+                    int v = row[clamp(j-radius, width)]>>shift & 0xff;
+                    colFine[j<<8|v]++;
+                    colCoarse[j<<4|v>>4]++;
+                }
+            }
+
+            for (int y = y0; y<y1; y++) {
+                if (y>y0) {
+                    // move every column histogram down a row
+                    src.getRow(clamp(y-radius-1, height), 0, width, old, 0);
+                    src.getRow(clamp(y+radius, height), 0, width, row, 0);
+                    for (int j = 0; j<columns; j++) {
+                        int x = clamp(j-radius, width);
+                        int v = old[x]>>shift & 0xff;
+                        int u = row[x]>>shift & 0xff;
+                        if (u==v) continue;
+                        colFine[j<<8|v]--;
+                        colCoarse[j<<4|v>>4]--;
+                        colFine[j<<8|u]++;
+                        colCoarse[j<<4|u>>4]++;
+                    }
+                }
+
+                Arrays.fill(coarse, 0);
+                for (int j = 0; j<size; j++) {
+                    for (int c = 0; c<16; c++) coarse[c] += colCoarse[j<<4|c];
+                }
+                Arrays.fill(last, -size);
+                int base = (y-y0)*width;
+
+                for (int x = 0; x<width; x++) {
+                    if (x>0) {
+                        int in = (x+size-1)<<4;
+                        int leaving = (x-1)<<4;
+                        for (int c = 0; c<16; c++) coarse[c] += colCoarse[in+c]-colCoarse[leaving+c];
+                    }
+
+                    int count = 0;
+                    int c = 0;
+                    while (count+coarse[c]<target) count += coarse[c++];
+
+                    // bring the fine slice for bin c up to date with the window at x
+                    int slice = c<<4;
+                    if (x-last[c]>=size) {
+                        Arrays.fill(fine, slice, slice+16, 0);
+                        for (int j = x; j<x+size; j++) {
+                            int col = j<<8|slice;
+                            for (int i = 0; i<16; i++) fine[slice+i] += colFine[col+i];
+                        }
+                    } else {
+                        for (int p = last[c]+1; p<=x; p++) {
+                            int in = (p+size-1)<<8|slice;
+                            int leaving = (p-1)<<8|slice;
+                            for (int i = 0; i<16; i++) fine[slice+i] += colFine[in+i]-colFine[leaving+i];
+                        }
+                    }
+                    last[c] = x;
+
+                    int v = slice;
+                    while (count+fine[v]<target) count += fine[v++];
+                    out[base+x] |= v<<shift;
+                }
+            }
+        }
+        for (int y = y0; y<y1; y++) dst.setRow(y, 0, width, out, (y-y0)*width);
+    }
+
+    private static int clamp(int i, int n) {
+        return i<0 ? 0 : i>=n ? n-1 : i;
+    }
+}
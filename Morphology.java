@@ -0,0 +1,118 @@
+import java.util.Arrays;
+
+/**
+ * Dilation and erosion by a rectangle, behind {@link Picture#dilate(int, int)} and friends,
+ * using van Herk and Gil-Werman's running extrema so the cost per pixel doesn't depend on
+ * the rectangle's size.
+ *
+ * The rectangle is separable, so each operation is a pass along the rows and then a pass
+ * down the columns. A pass cuts its line into blocks as long as the rectangle; within each
+ * block it takes running maxima (or minima) from the left and from the right, and the
+ * extreme of any window is then the right-running value at its start combined with the
+ * left-running value at its end: three comparisons per pixel. Channels are compared
+ * separately, so a dilated pixel can take its red from one neighbour and its green from
+ * another. Pixels past the edges are left out, as if they were black for an erosion and
+ * white for a dilation. The column pass works on whole rows at a time, a few bands of rows
+ * (plus the rectangle's height) at once, and both passes run over bands of rows in parallel.
+ */
+final class Morphology {
+
+    private Morphology() {
+    }
+
+    /**
+     * Dilates or erodes a store by a rectangle anchored at its middle (for even sizes, the
+     * element just after the halfway point, as for a {@link Kernel})
+     * @param src The store to filter. It is not changed
+     * @param width The width of the rectangle
+     * @param height The height of the rectangle
+     * @param dilate true to take the brightest value in the rectangle, false the darkest
+     * @return A new store holding the result
+     */
+    static PixelStore apply(PixelStore src, int width, int height, boolean dilate) {
+        if (width<=0 || height<=0) throw new RuntimeException("The structuring element can't be empty");
+        if (width==1 && height==1) return src.snapshot();
+        PixelStore across = src.blank(src.width, src.height);
+        RowBands.run(src.height, 1, (y0, y1) -> rows(src, across, y0, y1, width, dilate), src, across);
+        PixelStore dst = src.blank(src.width, src.height);
+        RowBands.run(src.height, 2*height, (y0, y1) -> RowBands.chunks(y0, y1, 2*height,
+                (c0, c1) -> columns(across, dst, c0, c1, height, dilate)), across, dst);
+        return dst;
+    }
+
+    /** The extreme of each channel of two packed colors */
+    static int pick(int a, int b, boolean dilate) {
+        if (dilate) {
+            return Math.max(a & 0xff0000, b & 0xff0000) | Math.max(a & 0xff00, b & 0xff00) | Math.max(a & 0xff, b & 0xff);
+        }
+        return Math.min(a & 0xff0000, b & 0xff0000) | Math.min(a & 0xff00, b & 0xff00) | Math.min(a & 0xff, b & 0xff);
+    }
+
+    /** The value that leaves the other side of {@link #pick} unchanged */
+    private static int identity(boolean dilate) {
+        return dilate ? 0x000000 : 0xffffff;
+    }
+
+    private static void rows(PixelStore src, PixelStore dst, int y0, int y1, int size, boolean dilate) {
+        int width = src.width;
+        int left = size/2;
+        // the padded line: left identities, the row, then identities up to a whole number of blocks
+        int n = (width+size-1+size-1)/size*size;
+        int[] line = new int[n];
+        int[] forward = new int[n];
+        int[] backward = new int[n];
+        int[] out = new int[width];
+        int none = identity(dilate);
+        for (int y = y0; y<y1; y++) {
+            Arrays.fill(line, none);
+            src.getRow(y, 0, width, line, left);
+            for (int i = 0; i<n; i++) {
+                forward[i] = i%size==0 ? line[i] : pick(forward[i-1], line[i], dilate);
+            }
+            for (int i = n-1; i>=0; i--) {
+                backward[i] = i%size==size-1 ? line[i] : pick(backward[i+1], line[i], dilate);
+            }
+            for (int x = 0; x<width; x++) out[x] = pick(backward[x], forward[x+size-1], dilate);
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+
+    private static void columns(PixelStore src, PixelStore dst, int y0, int y1, int size, boolean dilate) {
+        int width = src.width;
+        int top = size/2;
+        // window rows start at y0-top, so window row i covers output rows whose windows start there
+        int n = (y1-y0+size-1+size-1)/size*size;
+        int[] window = new int[n*width];
+        int[] forward = new int[n*width];
+        int[] backward = new int[n*width];
+        int none = identity(dilate);
+        for (int i = 0; i<n; i++) {
+            int y = y0-top+i;
+            if (y>=0 && y<src.height) src.getRow(y, 0, width, window, i*width);
+            else Arrays.fill(window, i*width, (i+1)*width, none);
+        }
+        for (int i = 0; i<n; i++) {
+            int row = i*width;
+            if (i%size==0) {
+                System.arraycopy(window, row, forward, row, width);
+            } else {
+                for (int x = 0; x<width; x++) forward[row+x] = pick(forward[row-width+x], window[row+x], dilate);
+            }
+        }
+        for (int i = n-1; i>=0; i--) {
+            int row = i*width;
+            if (i%size==size-1) {
+                System.arraycopy(window, row, backward, row, width);
+            } else {
+                for (int x = 0; x<width; x++) backward[row+x] = pick(backward[row+width+x], window[row+x], dilate);
+            }
+        }
+        int[] out = new int[width];
+        for (int y = y0; y<y1; y++) {
+            int start = (y-y0)*width;
+            int end = (y-y0+size-1)*width;
+            for (int x = 0; x<width; x++) out[x] = pick(backward[start+x], forward[end+x], dilate);
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+}
@@ -1,26 +1,105 @@
 import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntUnaryOperator;
+import java.util.function.UnaryOperator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.JFileChooser;
 import javax.swing.UIManager;
 
 /**
  * A class that represents a picture made up of a rectangle of {@link Pixel}s
+ *
+ * The pixels are stored packed (0xRRGGBB) in a {@link PixelStore}. Copying a Picture is
+ * copy-on-write: the copy shares its storage with the original, and only the rows either
+ * side writes to afterwards are actually copied, one band of rows at a time.
  */
 public class Picture {
 
-    /** The 2D array of pixels that comprise this picture */
+    /** The packed colors of the pixels that comprise this picture */
+	private PixelStore store;
+
+    /**
+     * The array handed out by {@link #getPixels()}, or null until it is asked for. Its elements
+     * start out as views of their own locations; one that has been assigned a different Pixel
+     * is copied into the store, and put back to the view, before its location is next used
+     */
 	private Pixel[][] pixels;
 
     /**
-     * Creates a Picture from an image file in the "images" directory
+     * Creates a Picture from an image file in the "images" directory. Decoded images are kept
+     * in the {@link ImageCache}, so loading the same file again is nearly free
      * @param picture The name of the file to load
      */
     public Picture(String picture) {
-        File file = new File("./images/"+picture);
+        this(ImageCache.load(new File("./images/"+picture), Picture::decode));
+    }
+
+    /**
+     * Loads a Picture from an image file anywhere on disk, using the {@link ImageCache}
+     * @param path The image file to load
+     * @return The Picture
+     */
+    public static Picture load(Path path) {
+        return new Picture(ImageCache.load(path.toFile(), Picture::decode));
+    }
+
+    /** The most images decoded at once by {@link #loadAsync(Path)}, so the heap stays bounded */
+    static final int MAX_DECODES = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** Runs asynchronous loads; its fixed size is what bounds the concurrent decodes */
+    private static final ExecutorService LOADER = Executors.newFixedThreadPool(MAX_DECODES, task -> {
+        Thread thread = new Thread(task, "Picture loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Loads a Picture from an image file in the background, like {@link #load(Path)}
+     * @param path The image file to load
+     * @return A future that completes with the Picture, or exceptionally if it can't be read
+     */
+    public static CompletableFuture<Picture> loadAsync(Path path) {
+        return CompletableFuture.supplyAsync(() -> load(path), LOADER);
+    }
+
+    /**
+     * Loads several image files in the background, at most {@link #MAX_DECODES} at a time.
+     * Each file succeeds or fails on its own, so one bad file doesn't affect the others
+     * @param paths The image files to load
+     * @return A future for each file, in the same order as the paths
+     */
+    public static List<CompletableFuture<Picture>> loadAll(List<Path> paths) {
+        List<CompletableFuture<Picture>> pictures = new ArrayList<>(paths.size());
+        for (Path path : paths) pictures.add(loadAsync(path));
+        return pictures;
+    }
+
+    /**
+     * Decodes an image file into a {@link PixelStore}, without going through the {@link ImageCache}
+     * @param file The image file
+     * @return The store holding the image's pixels
+     */
+    static PixelStore decode(File file) {
         BufferedImage image;
         if (!file.exists()) throw new RuntimeException("No picture at the location "+file.getPath()+"!");
         try {
@@ -28,17 +107,12 @@ public class Picture {
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         }
-        pixels = new Pixel[image.getHeight()][image.getWidth()];
-        for (int y = 0; y<pixels.length; y++) {
-            for (int x = 0; x<pixels[y].length; x++) {
-                int rgb = image.getRGB(x, y);
-                /*
-                 * For the curious - BufferedImage saves an image's RGB info into a hexadecimal integer
-                 * The below extracts the individual values using bit-shifting and bit-wise ANDing with all 1's
-                 */
-                pixels[y][x] = new Pixel((rgb>>16)&0xff, (rgb>>8)&0xff, rgb&0xff);
-            }
-        }
+        if (image==null) throw new RuntimeException("Can't read the picture at "+file.getPath());
+        /*
+         * For the curious - BufferedImage saves an image's RGB info into a hexadecimal integer
+         * The store keeps that integer as-is (minus the alpha) instead of splitting it into a Pixel
+         */
+        return BandedPixelStore.of(image);
     }
 
     /**
@@ -50,12 +124,7 @@ public class Picture {
      * @param width The width of the Picture
      */
     public Picture(int red, int green, int blue, int height, int width) {
-        pixels = new Pixel[height][width];
-        for (int y = 0; y<pixels.length; y++) {
-            for (int x = 0; x<pixels[y].length; x++) {
-                pixels[y][x] = new Pixel(red, green, blue);
-            }
-        }
+        store = new BandedPixelStore(width, height, Pixel.pack(red, green, blue));
     }
 
     /**
@@ -87,20 +156,58 @@ public class Picture {
         int width = pixels[0].length;
         for (int i = 0; i<pixels.length; i++) if (pixels[i].length!=width)
             throw new RuntimeException("Pictures must be rectangles. pixels[0].length!=pixels["+i+"].length!");
-        this.pixels = new Pixel[pixels.length][width];
+        store = new BandedPixelStore(width, pixels.length);
+        int[] row = new int[width];
         for (int i = 0; i<pixels.length; i++) {
             for (int j = 0; j<pixels[i].length; j++) {
-                this.pixels[i][j] = new Pixel(pixels[i][j].getColor());
+                row[j] = pixels[i][j].getRGB();
             }
+            store.setRow(i, 0, width, row, 0);
         }
     }
 
     /**
-     * Creates a Picture based off of an existing Picture
+     * Creates a Picture based off of an existing Picture. This takes constant time: the two
+     * Pictures share their pixels until one of them is changed
      * @param picture The Picture to copy
      */
     public Picture(Picture picture) {
-        this(picture.pixels);
+        this(picture.store().snapshot());
+    }
+
+    /**
+     * Opens an image file as a tiled Picture, for images too big to fit in memory.
+     * The image is read in 256x256 tiles the first time each tile is used, and at most
+     * memoryBudget bytes of tiles are kept in memory; changed tiles that don't fit are
+     * written to a temporary file. Filters that work a row at a time (like blur) need
+     * the budget to hold a full row of tiles, 256*4*width bytes
+     * @param path The image file
+     * @param memoryBudget The most bytes of tiles to keep in memory
+     * @return The tiled Picture
+     */
+    public static Picture openTiled(Path path, long memoryBudget) {
+        return new Picture(TiledPixelStore.open(path.toFile(), memoryBudget));
+    }
+
+    /**
+     * Opens a raw picture file written by {@link #saveRaw(Path)}. The file is memory-mapped
+     * rather than decoded, so opening it takes constant time no matter how big it is
+     * @param path The raw picture file
+     * @param writable If true, changes to the Picture are written back to the file (call
+     *                 {@link #flush()} to make sure they have reached the disk); if false,
+     *                 changing the Picture throws an exception
+     * @return The Picture
+     */
+    public static Picture openRaw(Path path, boolean writable) {
+        return new Picture(MappedPixelStore.open(path, writable));
+    }
+
+    /**
+     * Creates a Picture backed by a given {@link PixelStore}
+     * @param store The store holding the Picture's pixels
+     */
+    Picture(PixelStore store) {
+        this.store = store;
     }
 
     /**
@@ -108,7 +215,7 @@ public class Picture {
      * @return The width of the Picture
      */
     public int getWidth() {
-        return pixels[0].length;
+        return store.width;
     }
 
     /**
@@ -116,22 +223,23 @@ public class Picture {
      * @return The height of the Picture
      */
     public int getHeight() {
-        return pixels.length;
+        return store.height;
     }
 
     /**
-     * Gets the {@link Pixel} at a given coordinate
+     * Gets the {@link Pixel} at a given coordinate. The Pixel is a view of this Picture, so
+     * changing its color changes the Picture
      * @param x The x location of the {@link Pixel}
      * @param y The y location of the {@link Pixel}
      * @return The {@link Pixel} at the given location
      */
     public Pixel getPixel(int x, int y) {
         if (x>=getWidth() || y>=getHeight() || x<0 || y<0) throw new RuntimeException("No pixel at ("+x+", "+y+")");
-        return pixels[y][x];
+        return new Pixel(this, x, y);
     }
 
     /**
-     * Sets the {@link Pixel} at a given coordinate
+     * Sets the {@link Pixel} at a given coordinate by copying its color into the Picture
      * @param x The x location of the {@link Pixel}
      * @param y The y location of the {@link Pixel}
      * @param pixel The new {@link Pixel}
@@ -139,15 +247,392 @@ public class Picture {
     public void setPixel(int x, int y, Pixel pixel) {
         if (x>=getWidth() || y>=getHeight() || x<0 || y<0) throw new RuntimeException("No pixel at ("+x+", "+y+")");
         if (pixel==null) throw new NullPointerException("Pixel is null"); //guard is required because pixel's value isn't used in this method
-        pixels[y][x] = pixel;
+        settle(x, y);
+        store.set(x, y, pixel.getRGB());
+    }
+
+    /**
+     * Gets the color at a given coordinate packed into a single int
+     * @param x The x location
+     * @param y The y location
+     * @return The color as 0xRRGGBB
+     */
+    public int getRGB(int x, int y) {
+        if (x>=getWidth() || y>=getHeight() || x<0 || y<0) throw new RuntimeException("No pixel at ("+x+", "+y+")");
+        settle(x, y);
+        return store.get(x, y);
+    }
+
+    /**
+     * Sets the color at a given coordinate from a single packed int
+     * @param x The x location
+     * @param y The y location
+     * @param rgb The color as 0xRRGGBB; any higher bits are ignored
+     */
+    public void setRGB(int x, int y, int rgb) {
+        if (x>=getWidth() || y>=getHeight() || x<0 || y<0) throw new RuntimeException("No pixel at ("+x+", "+y+")");
+        settle(x, y);
+        store.set(x, y, rgb & 0xffffff);
+    }
+
+    /**
+     * Replaces every pixel's packed color with the result of a function of it
+     * @param op A function from a 0xRRGGBB color to a 0xRRGGBB color
+     */
+    public void apply(IntUnaryOperator op) {
+        store().apply(op, 0, 0, getWidth(), getHeight());
+    }
+
+    /**
+     * Replaces the packed color of the pixels set in a {@link Mask} with the result of a
+     * function of it. Rows with no pixels set aren't touched
+     * @param op A function from a 0xRRGGBB color to a 0xRRGGBB color
+     * @param mask The pixels to change; must be the same size as this Picture
+     */
+    public void apply(IntUnaryOperator op, Mask mask) {
+        PixelStore store = store();
+        checkMask(mask);
+        int width = getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y<getHeight(); y++) {
+            if (mask.rowEmpty(y)) continue;
+            store.getRow(y, 0, width, row, 0);
+            for (int i = 0; i<mask.stride; i++) {
+                long bits = mask.words[y*mask.stride+i];
+                while (bits!=0) {
+                    int x = i<<6 | Long.numberOfTrailingZeros(bits);
+                    row[x] = op.applyAsInt(row[x]) & 0xffffff;
+                    bits &= bits-1;
+                }
+            }
+            store.setRow(y, 0, width, row, 0);
+        }
+    }
+
+    /**
+     * Runs a filter on this Picture but only keeps its results for the pixels set in a
+     * {@link Mask}, e.g. picture.applyMasked(p -&gt; p.blur(3), faces). Nothing says how far
+     * the filter looks, so it runs on the whole Picture; {@link #apply(PictureFilter, Mask)}
+     * only processes the area the mask covers
+     * @param filter The filter. It is given a copy of this Picture, and may change it or return a new one
+     * @param mask The pixels to change; must be the same size as this Picture
+     */
+    public void applyMasked(UnaryOperator<Picture> filter, Mask mask) {
+        checkMask(mask);
+        Regions.masked(store(), filter, PictureFilter.GLOBAL, mask);
+    }
+
+    /**
+     * Replaces the packed color of the pixels in a rectangle with the result of a function of it
+     * @param op A function from a 0xRRGGBB color to a 0xRRGGBB color
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle. Parts of the rectangle outside the Picture are ignored
+     */
+    public void apply(IntUnaryOperator op, int x, int y, int w, int h) {
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = (int)Math.min(getWidth(), (long)x+w);
+        int y1 = (int)Math.min(getHeight(), (long)y+h);
+        if (x0<x1 && y0<y1) store().apply(rgb -> op.applyAsInt(rgb) & 0xffffff, x0, y0, x1-x0, y1-y0);
+    }
+
+    /**
+     * Runs a filter on a rectangle of this Picture, e.g.
+     * picture.apply(PictureFilter.parse("blur:3"), 300, 35, 188, 62). The work done
+     * follows the size of the rectangle, not of the Picture
+     * @param filter The filter
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle. Parts of the rectangle outside the Picture are ignored
+     */
+    public void apply(PictureFilter filter, int x, int y, int w, int h) {
+        filter.apply(this, x, y, w, h);
+    }
+
+    /**
+     * Runs a filter on the pixels set in a {@link Mask}. The work done follows the area the
+     * set pixels cover, not the size of the Picture
+     * @param filter The filter
+     * @param mask The pixels to change; must be the same size as this Picture
+     */
+    public void apply(PictureFilter filter, Mask mask) {
+        filter.apply(this, mask);
+    }
+
+    void checkMask(Mask mask) {
+        if (mask.getWidth()!=getWidth() || mask.getHeight()!=getHeight()) {
+            throw new RuntimeException("The mask is "+mask.getWidth()+"x"+mask.getHeight()+" but the Picture is "+getWidth()+"x"+getHeight());
+        }
+    }
+
+    /**
+     * Gets the store holding this Picture's pixels
+     * @return The {@link PixelStore}
+     */
+    PixelStore store() {
+        settleAll();
+        return store;
+    }
+
+    /**
+     * Copies a Pixel assigned into the {@link #getPixels()} array at one location into the store
+     * @param x The x location
+     * @param y The y location
+     */
+    private void settle(int x, int y) {
+        if (pixels==null) return;
+        Pixel pixel = pixels[y][x];
+        if (pixel==null || pixel.isViewOf(this, x, y)) return;
+        // put the view back first, in case the Pixel is a view of somewhere that leads back here
+        pixels[y][x] = new Pixel(this, x, y);
+        store.set(x, y, pixel.getRGB());
+    }
+
+    /** Copies every Pixel assigned into the {@link #getPixels()} array into the store */
+    private void settleAll() {
+        Pixel[][] assigned = pixels;
+        if (assigned==null) return;
+        // read every assigned color before writing any, so Pixels moved around the array (a
+        // swap, say) land with the colors their locations had; with the array set aside, views
+        // read the store as it is
+        int[] found = new int[48];
+        int n = 0;
+        pixels = null;
+        try {
+            for (int y = 0; y<assigned.length; y++) {
+                for (int x = 0; x<assigned[y].length; x++) {
+                    Pixel pixel = assigned[y][x];
+                    if (pixel==null || pixel.isViewOf(this, x, y)) continue;
+                    if (n==found.length) found = Arrays.copyOf(found, 2*n);
+                    found[n++] = x;
+                    found[n++] = y;
+                    found[n++] = pixel.getRGB();
+                }
+            }
+        } finally {
+            pixels = assigned;
+        }
+        for (int i = 0; i<n; i += 3) {
+            assigned[found[i+1]][found[i]] = new Pixel(this, found[i], found[i+1]);
+            store.set(found[i], found[i+1], found[i+2]);
+        }
+    }
+
+    /**
+     * Halves this Picture's width and height (rounding up), averaging each 2x2 block of pixels
+     * @return The new, smaller Picture
+     */
+    public Picture halve() {
+        return new Picture(Pyramid.halve(store(), () -> false));
+    }
+
+    /**
+     * Makes a mipmap pyramid: this Picture, then copies each half the size of the one before,
+     * down to a single pixel
+     * @return The levels, full size first
+     */
+    public List<Picture> mipmaps() {
+        Pyramid pyramid = new Pyramid(store().snapshot(), 1);
+        pyramid.build(() -> {});
+        List<Picture> levels = new ArrayList<>(pyramid.size());
+        for (int l = 0; l<pyramid.size(); l++) levels.add(new Picture(pyramid.level(l)));
+        return levels;
+    }
+
+    /**
+     * Resizes this Picture by averaging the pixels each new pixel covers. Meant for making
+     * pictures smaller, which it does without the jaggies of just skipping pixels
+     * @param width The new width
+     * @param height The new height
+     * @return The resized Picture
+     */
+    public Picture shrink(int width, int height) {
+        return new Picture(AreaAverage.resize(store(), width, height));
+    }
+
+    /**
+     * Resizes this Picture, bigger or smaller, weighting the source pixels near each new pixel
+     * with a filter
+     * @param width The new width
+     * @param height The new height
+     * @param filter The filter; {@link ResizeFilter#LANCZOS3} is the sharpest, {@link ResizeFilter#BILINEAR} the softest
+     * @return The resized Picture
+     */
+    public Picture resize(int width, int height, ResizeFilter filter) {
+        return new Picture(Resampler.resize(store(), width, height, filter));
+    }
+
+    /**
+     * Rotates this Picture about its center by any angle, growing it to fit the corners
+     * @param degrees The angle, clockwise
+     * @param background The color of the new corners
+     * @return The rotated Picture
+     */
+    public Picture rotate(double degrees, Color background) {
+        return transform(AffineTransform.getRotateInstance(Math.toRadians(degrees)), background);
+    }
+
+    /**
+     * Transforms this Picture (rotating, scaling, shearing, or any mix of them), making the
+     * result just big enough to hold it all. Where the transform moves it doesn't matter
+     * @param transform Maps this Picture's coordinates to the new ones
+     * @param background The color of the parts of the result this Picture doesn't cover
+     * @return The transformed Picture
+     */
+    public Picture transform(AffineTransform transform, Color background) {
+        Rectangle2D bounds = transform.createTransformedShape(new Rectangle2D.Double(0, 0, getWidth(), getHeight())).getBounds2D();
+        // don't let rounding error in the corners add a row or column
+        double left = Math.floor(bounds.getMinX()+1e-6);
+        double top = Math.floor(bounds.getMinY()+1e-6);
+        int width = (int)Math.max(1, Math.ceil(bounds.getMaxX()-1e-6)-left);
+        int height = (int)Math.max(1, Math.ceil(bounds.getMaxY()-1e-6)-top);
+        AffineTransform moved = AffineTransform.getTranslateInstance(-left, -top);
+        moved.concatenate(transform);
+        return transform(moved, width, height, background);
+    }
+
+    /**
+     * Transforms this Picture onto a new one of a given size. Each new pixel is read from
+     * where the transform takes it back to in this Picture, blending the nearest four pixels
+     * @param transform Maps this Picture's coordinates to the new ones
+     * @param width The width of the result
+     * @param height The height of the result
+     * @param background The color of the parts of the result this Picture doesn't cover
+     * @return The transformed Picture
+     */
+    public Picture transform(AffineTransform transform, int width, int height, Color background) {
+        return new Picture(AffineWarp.transform(store(), transform, width, height, background.getRGB() & 0xffffff));
+    }
+
+    /**
+     * Counts how many pixels have each value of red, green, blue and luminance
+     * @return The {@link Histogram}, which also has each channel's mean, variance, min and max
+     */
+    public Histogram histogram() {
+        return Histogram.of(store());
+    }
+
+    /**
+     * Spreads each channel's values out so they are used about equally often, which brings
+     * out detail in dull or washed-out pictures
+     */
+    public void equalize() {
+        Histogram histogram = histogram();
+        int[] red = histogram.equalizer(Histogram.RED);
+        int[] green = histogram.equalizer(Histogram.GREEN);
+        int[] blue = histogram.equalizer(Histogram.BLUE);
+        apply(rgb -> red[rgb>>16 & 0xff]<<16 | green[rgb>>8 & 0xff]<<8 | blue[rgb & 0xff]);
+    }
+
+    /**
+     * Equalizes each part of this Picture on its own (contrast limited adaptive histogram
+     * equalization), so dark corners and bright skies both get their detail brought out
+     * @param across The number of tiles across, each equalized separately
+     * @param down The number of tiles down
+     * @param clipLimit How much the contrast may be stretched; 1 clips hardest but still evens out each tile, 2 to 4 is usual
+     * @return The equalized Picture
+     */
+    public Picture clahe(int across, int down, double clipLimit) {
+        return new Picture(Equalization.clahe(store(), across, down, clipLimit));
+    }
+
+    /**
+     * Picks a palette of colors that represent this Picture well, by median cut
+     * @param colors The most colors the palette may have, 1 to 256
+     * @return The palette's packed 0xRRGGBB colors; fewer than asked for if this Picture has fewer colors
+     */
+    public int[] palette(int colors) {
+        return Quantizer.palette(store(), colors);
+    }
+
+    /**
+     * Reduces this Picture to a few colors, picked to suit it by {@link #palette(int)}.
+     * Unlike posterize, the colors go where this Picture's colors actually are
+     * @param colors The most colors the result may have, 1 to 256
+     * @param dither Whether to dither (Floyd-Steinberg), trading banding for a fine grain
+     * @return The reduced Picture
+     */
+    public Picture quantize(int colors, boolean dither) {
+        return quantize(palette(colors), dither);
+    }
+
+    /**
+     * Reduces this Picture to the colors of a palette, replacing each pixel with the palette
+     * color nearest it
+     * @param palette 1 to 256 packed 0xRRGGBB colors
+     * @param dither Whether to dither (Floyd-Steinberg), trading banding for a fine grain
+     * @return The reduced Picture
+     */
+    public Picture quantize(int[] palette, boolean dither) {
+        return new Picture(Quantizer.remap(store(), palette, dither));
+    }
+
+    /**
+     * Makes a thumbnail that fits in a box, keeping this Picture's shape
+     * @param maxWidth The widest the thumbnail may be
+     * @param maxHeight The tallest the thumbnail may be
+     * @return The thumbnail; this Picture is never made bigger, so a small one comes back as a copy
+     */
+    public Picture thumbnail(int maxWidth, int maxHeight) {
+        int[] size = fit(getWidth(), getHeight(), maxWidth, maxHeight);
+        if (size[0]==getWidth() && size[1]==getHeight()) return new Picture(this);
+        return shrink(size[0], size[1]);
+    }
+
+    /**
+     * Makes a thumbnail of an image file that fits in a box, without decoding the whole image
+     * at full size: the decoder is asked to keep only every n-th pixel of every n-th row,
+     * leaving at least twice the thumbnail's size, which is then area averaged down
+     * @param path The image file
+     * @param maxWidth The widest the thumbnail may be
+     * @param maxHeight The tallest the thumbnail may be
+     * @return The thumbnail
+     */
+    public static Picture thumbnail(Path path, int maxWidth, int maxHeight) {
+        if (!Files.exists(path)) throw new RuntimeException("No picture at the location "+path+"!");
+        try (ImageInputStream in = ImageIO.createImageInputStream(path.toFile())) {
+            Iterator<ImageReader> readers = in==null ? null : ImageIO.getImageReaders(in);
+            if (readers==null || !readers.hasNext()) throw new RuntimeException("Can't read the picture at "+path);
+            ImageReader reader = readers.next();
+            BufferedImage image;
+            int[] size;
+            try {
+                reader.setInput(in, true, true);
+                size = fit(reader.getWidth(0), reader.getHeight(0), maxWidth, maxHeight);
+                int step = Math.max(1, Math.min(reader.getWidth(0)/size[0], reader.getHeight(0)/size[1])/2);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+            PixelStore store = BandedPixelStore.of(image);
+            if (store.width==size[0] && store.height==size[1]) return new Picture(store);
+            return new Picture(AreaAverage.resize(store, size[0], size[1]));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** The largest size no bigger than width x height that fits in the box and keeps its shape */
+    private static int[] fit(int width, int height, int maxWidth, int maxHeight) {
+        if (maxWidth<=0 || maxHeight<=0) throw new RuntimeException("A thumbnail must be at least 1x1");
+        double scale = Math.min(1, Math.min((double)maxWidth/width, (double)maxHeight/height));
+        return new int[] {
+            Math.max(1, Math.min(maxWidth, (int)Math.round(width*scale))),
+            Math.max(1, Math.min(maxHeight, (int)Math.round(height*scale)))
+        };
     }
 
     /**
-     * Opens a {@link PictureViewer} to view this Picture
+     * Opens a {@link PictureViewer} to view this Picture. Very big pictures are viewed tiled
      * @return the {@link PictureViewer} viewing the Picture
      */
     public PictureViewer view() {
-        return new PictureViewer(this);
+        return new PictureViewer(this, (long)getWidth()*getHeight()>PictureViewer.TILED_PIXELS);
     }
 
 	/**
@@ -165,11 +650,7 @@ public class Picture {
 	        e.printStackTrace();
 	    }
 		
-		BufferedImage image = new BufferedImage(this.pixels[0].length, this.pixels.length, BufferedImage.TYPE_INT_RGB);
-
-		for (int r = 0; r < this.pixels.length; r++)
-			for (int c = 0; c < this.pixels[0].length; c++)
-				image.setRGB(c, r, this.pixels[r][c].getColor().getRGB());
+		BufferedImage image = toBufferedImage();
 
 		//user's Desktop will be default directory location
 		JFileChooser chooser = new JFileChooser(System.getProperty("user.home") + "/Desktop");
@@ -198,12 +679,91 @@ public class Picture {
 			System.out.println("Invalid directory choice");
 		}
 	}
+
+	/**
+	 * Save the image to a file, in the format given by the file's extension (e.g. "lilies.png")
+	 * @param path The file to write; it is replaced if it exists
+	 */
+	public void save(Path path) {
+		String name = path.getFileName().toString();
+		String format = name.substring(name.lastIndexOf('.') + 1);
+		try {
+			if (!ImageIO.write(toBufferedImage(), format, path.toFile()))
+				throw new RuntimeException("No image writer for ." + format + " files");
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Can't write to location: " + path + " (" + e.getMessage() + ")", e);
+		}
+	}
+
+	/**
+	 * Save the image as an uncompressed raw picture file, which {@link #openRaw(Path, boolean)}
+	 * can open again without decoding. Meant for intermediate results, not for sharing:
+	 * the files are 3 bytes per pixel and nothing else can read them
+	 * @param path The file to write; it is replaced if it exists
+	 */
+	public void saveRaw(Path path) {
+		MappedPixelStore.write(store(), path);
+	}
+
+	/**
+	 * Makes sure changes to a Picture opened with {@link #openRaw(Path, boolean)} have been
+	 * written to its file. Does nothing for other Pictures
+	 */
+	public void flush() {
+		store().flush();
+	}
+
+	/**
+	 * Copies this Picture into a new TYPE_INT_RGB {@link BufferedImage}. Bands of rows are
+	 * copied in parallel, straight into the image's raster
+	 * @return The image
+	 */
+	public BufferedImage toBufferedImage() {
+		PixelStore store = store();
+		int width = getWidth();
+		BufferedImage image = new BufferedImage(width, getHeight(), BufferedImage.TYPE_INT_RGB);
+		// setDataElements copies packed ints as they are, and leaves the image able to be cached on the graphics card
+		WritableRaster raster = image.getRaster();
+		RowBands.run(getHeight(), 1, (y0, y1) -> {
+			int[] rows = new int[(y1 - y0) * width];
+			for (int r = y0; r < y1; r++) store.getRow(r, 0, width, rows, (r - y0) * width);
+			raster.setDataElements(0, y0, width, y1 - y0, rows);
+		}, store);
+		return image;
+	}
 	
-	/** return a copy of the reference to the 2D array of pixels that comprise this picture */
+	/**
+	 * return the 2D array of the pixels that comprise this picture, indexed [row][column]
+	 * the same array is returned every time, and each Pixel in it is a view of this picture,
+	 * so changing it changes the picture. assigning a different Pixel into the array copies
+	 * that Pixel's color into the picture (as setPixel does) before the location is next used
+	 */
 	public Pixel[][] getPixels() {
+		if (pixels == null) {
+			Pixel[][] views = new Pixel[getHeight()][getWidth()];
+			for (int r = 0; r < views.length; r++)
+				for (int c = 0; c < views[r].length; c++)
+					views[r][c] = new Pixel(this, c, r);
+			pixels = views;
+		}
+		settleAll();
 		return pixels;
 	}
 
+	/**
+	 * Gets the squared distance between two packed colors
+	 * @param a The first 0xRRGGBB color
+	 * @param b The second 0xRRGGBB color
+	 * @return The squared distance between the colors, as in {@link Pixel#colorDistance(Color)}
+	 */
+	static int colorDistanceSq(int a, int b) {
+		int dr = ((a>>16)&0xff) - ((b>>16)&0xff);
+		int dg = ((a>>8)&0xff) - ((b>>8)&0xff);
+		int db = (a&0xff) - (b&0xff);
+		return dr*dr + dg*dg + db*db;
+	}
+
 
     /********************************************************
      *************** STUDENT METHODS BELOW ******************
@@ -212,497 +772,570 @@ public class Picture {
     /** remove all blue tint from a picture */
     public void zeroBlue()
     {
-    	for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
-    		{
-    			pixels [x] [y].setBlue(0);
-    		}
-    	}
-    	
-    	//TODO
+    	apply(rgb -> rgb & 0xffff00);
     }
 
     /** remove everything BUT blue tint from a picture */
     public void keepOnlyBlue()
     {
-    	for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
-    		{
-    			pixels [x] [y].setRed(0);
-    			pixels [x] [y].setGreen(0);
-    		}
-    	}
-    	//TODO
+    	apply(rgb -> rgb & 0x0000ff);
     }
 
     /** invert a picture's colors */
     public void negate()
     {
-    	for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
-    		{
-    			pixels [x] [y].setRed(255 - pixels [x] [y].getRed());
-    			pixels [x] [y].setGreen(255 - pixels [x] [y].getGreen());
-    			pixels [x] [y].setBlue(255 - pixels [x] [y].getBlue());
-    		}
-    	}
-    	//TODO
+    	apply(rgb -> rgb ^ 0xffffff);
     }
 
     /** simulate the over-exposure of a picture in film processing */
     public void solarize(int threshold)
     {
-    	for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
+    	apply(rgb -> {
+    		int red   = (rgb >> 16) & 0xff;
+    		int green = (rgb >> 8) & 0xff;
+    		int blue  = rgb & 0xff;
+    		if(red < threshold)
     		{
-    			if(pixels [x] [y] .getRed() < threshold)
-    			{
-    				pixels [x] [y].setRed(255 - pixels [x] [y].getRed());
-    			}
-    			
-    			if(pixels [x] [y] .getBlue() < threshold)
-    			{
-    				pixels [x] [y].setBlue(255 - pixels [x] [y].getBlue());
-    			}
-    			
-    			if(pixels [x] [y] .getGreen() < threshold)
-    			{
-    				pixels [x] [y].setGreen(255 - pixels [x] [y].getGreen());
-    			}
+    			red = 255 - red;
     		}
-    	}
-    	//TODO
+    		if(blue < threshold)
+    		{
+    			blue = 255 - blue;
+    		}
+    		if(green < threshold)
+    		{
+    			green = 255 - green;
+    		}
+    		return red << 16 | green << 8 | blue;
+    	});
     }
 
     /** convert an image to grayscale */
     public void grayscale()
     {
-    	int red = 0;
-    	int blue = 0;
-    	int green = 0;
-    	for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
-    		{
-    			red = pixels [x] [y].getRed();
-    			blue = pixels [x] [y].getBlue();
-    			green = pixels [x] [y].getGreen();
-    			pixels [x] [y].setRed((red + blue + green)/3);
-    			pixels [x] [y].setBlue((red + blue + green)/3);
-    			pixels [x] [y].setGreen((red + blue + green)/3);
-    		}
-    	}
-    	
-    	//TODO
+    	apply(rgb -> {
+    		int gray = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3;
+    		return gray << 16 | gray << 8 | gray;
+    	});
     }
 
 	/** change the tint of the picture by the supplied coefficients */
 	public void tint(double red, double blue, double green)
 	{
-		int reddy = 0;
-    	int bluey = 0;
-    	int greeny = 0;
-		for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
-    		{
-    			reddy = pixels [x] [y].getRed();
-    			bluey = pixels [x] [y].getBlue();
-    			greeny = pixels [x] [y].getGreen();
-    			if(reddy * red <= 255)
-    			{
-    				reddy *= red;
-    			}
-    			else
-    			{
-    				reddy = 255;
-    			}
-    			
-    			if(bluey * blue <= 255)
-    			{
-    				bluey *= blue;
-    			}
-    			else
-    			{
-    				bluey = 255;
-    			}
-    			
-    			if(greeny * green <= 255)
-    			{
-    				greeny *= green;
-    			}
-    			else
-    			{
-    				green = 255;
-    			}
-    			pixels [x] [y].setRed(reddy);
-    			pixels [x] [y].setBlue(bluey);
-    			pixels [x] [y].setGreen(greeny);
-    		}
-    	}
-		//TODO
+		apply(rgb -> {
+			int reddy  = (int) (((rgb >> 16) & 0xff) * red);
+			int greeny = (int) (((rgb >> 8) & 0xff) * green);
+			int bluey  = (int) ((rgb & 0xff) * blue);
+			return Pixel.pack(reddy, greeny, bluey);
+		});
 	}
 	
 	/** reduces the number of colors in an image to create a "graphic poster" effect */
 	public void posterize(int span)
 	{
-		for(int x = 0; x < pixels.length; x++)
-    	{
-    		for(int y = 0; y < pixels[x].length; y++)
-    		{
-    			pixels [x] [y].setRed(pixels [x] [y].getRed()/span * span);
-    			pixels [x] [y].setGreen(pixels [x] [y].getGreen()/span * span);
-    			pixels [x] [y].setBlue(pixels [x] [y].getBlue()/span * span);
-    		}
-    	}
-		//TODO
+		apply(rgb -> {
+			int red   = ((rgb >> 16) & 0xff) / span * span;
+			int green = ((rgb >> 8) & 0xff) / span * span;
+			int blue  = (rgb & 0xff) / span * span;
+			return red << 16 | green << 8 | blue;
+		});
 	}
 
     /** mirror an image about a vertical midline, left to right */
     public void mirrorVertical()
     {
-		Pixel leftPixel  = null;
-		Pixel rightPixel = null;
+		PixelStore store = store();
+		int width = getWidth();
+		int[] row = new int[width];
 
-		int width = pixels[0].length;
-
-		for (int r = 0; r < pixels.length; r++)
+		for (int r = 0; r < getHeight(); r++)
 		{
+			store.getRow(r, 0, width, row, 0);
 			for (int c = 0; c < width / 2; c++)
 			{
-				leftPixel  = pixels[r][c];
-				rightPixel = pixels[r][(width - 1) - c];
-
-				leftPixel.setColor(rightPixel.getColor());
+				row[c] = row[(width - 1) - c];
 			}
+			store.setRow(r, 0, width / 2, row, 0);
 		}
     }
 
     /** mirror about a vertical midline, right to left */
     public void mirrorRightToLeft()
     {
-    	Pixel leftPixel  = null;
-		Pixel rightPixel = null;
-
-		int width = pixels[0].length;
+		PixelStore store = store();
+		int width = getWidth();
+		int[] row = new int[width];
 
-		for (int r = 0; r < pixels.length; r++)
+		for (int r = 0; r < getHeight(); r++)
 		{
+			store.getRow(r, 0, width, row, 0);
 			for (int c = 0; c < width / 2; c++)
 			{
-				leftPixel  = pixels[r][c];
-				rightPixel = pixels[r][(width - 1) - c];
-
-				leftPixel.setColor(rightPixel.getColor());
+				row[c] = row[(width - 1) - c];
 			}
+			store.setRow(r, 0, width / 2, row, 0);
 		}
-    	//TODO
     }
 
     /** mirror about a horizontal midline, top to bottom */
     public void mirrorHorizontal()
     {
-    	Pixel topPixel  = null;
-		Pixel bottomPixel = null;
-
-		int length = pixels.length;
+		PixelStore store = store();
+		int width = getWidth();
+		int length = getHeight();
+		int[] row = new int[width];
 
 		for (int r = 0; r < length/2; r++)
 		{
-			for (int c = 0; c < pixels [r] .length; c++)
-			{
-				topPixel  = pixels[r][c];
-				bottomPixel = pixels[(length - 1) - r][c];
-
-				bottomPixel.setColor(topPixel.getColor());
-			}
+			store.getRow(r, 0, width, row, 0);
+			store.setRow((length - 1) - r, 0, width, row, 0);
 		}
-    	//TODO
     }
 
     /** flip an image upside down about its bottom edge */
     public void verticalFlip()
     {
-    	Pixel topPixel  = null;
-		Pixel bottomPixel = null;
-		Color temp = null;
-
-		int length = pixels.length;
+		PixelStore store = store();
+		int width = getWidth();
+		int length = getHeight();
+		int[] top = new int[width];
+		int[] bottom = new int[width];
 
 		for (int r = 0; r < length/2; r++)
 		{
-			for (int c = 0; c < pixels [r] .length; c++)
-			{
-				topPixel  = pixels[r][c];
-				bottomPixel = pixels[(length - 1) - r][c];
-				temp = bottomPixel.getColor();
-				bottomPixel.setColor(topPixel.getColor());
-				topPixel.setColor(temp);
-			}
+			store.getRow(r, 0, width, top, 0);
+			store.getRow((length - 1) - r, 0, width, bottom, 0);
+			store.setRow(r, 0, width, bottom, 0);
+			store.setRow((length - 1) - r, 0, width, top, 0);
 		}
-    	//TODO
     }
 
     /** fix roof on greek temple */
     public void fixRoof()
     {
-    	Pixel leftPixel  = null;
-		Pixel rightPixel = null;
+		fixRoof(300, 35, 188, 62);
+    }
 
+    /**
+     * fix a rectangle by copying in the pixels mirrored across the picture's vertical midline
+     * @param x the left edge of the rectangle
+     * @param y the top edge of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle (parts outside the picture are ignored)
+     */
+    public void fixRoof(int x, int y, int w, int h)
+    {
+		PixelStore store = store();
+		int width = getWidth();
+		//column 0 has no mirror image
+		int left = Math.max(1, x);
+		int right = (int) Math.min(width, (long) x + w);
+		if (left >= right)
+		{
+			return;
+		}
+		int[] row = new int[width];
 
-		for (int r = 35; r < 97; r++)
+		for (int r = Math.max(0, y); r < Math.min(getHeight(), (long) y + h); r++)
 		{
-			for (int c = 300; c < 488; c++)
+			store.getRow(r, 0, width, row, 0);
+			for (int c = left; c < right; c++)
 			{
-				rightPixel  = pixels[r][c];
-				leftPixel = pixels[r][pixels[r].length-c];
-
-				rightPixel.setColor(leftPixel.getColor());
+				row[c] = row[width - c];
 			}
+			store.setRow(r, left, right - left, row, left);
 		}
-    	//TODO
     }
 
     /** detect and mark edges in an image */
     public void edgeDetection(int dist)
     {
-    	double distanceOfColorX = 0;
-    	double distanceOfColorY = 0;
-    	Pixel edge [] [] = pixels;
-    	
-    	for(int x = 0; x < pixels.length - 1; x++)
+    	PixelStore store = store();
+    	int width = getWidth();
+    	int[] row = new int[width];
+    	int[] below = new int[width];
+    	//a pixel is an edge when (int) colorDistance > dist, i.e. when the squared distance is at least (dist + 1)^2
+    	long limit = dist < 0 ? 0 : (long) (dist + 1) * (dist + 1);
+
+    	store.getRow(0, 0, width, below, 0);
+    	for(int x = 0; x < getHeight() - 1; x++)
     	{
-    		for(int y = 0; y < pixels[x].length - 1; y++)
+    		int[] temp = row;
+    		row = below;
+    		below = temp;
+    		store.getRow(x + 1, 0, width, below, 0);
+    		for(int y = 0; y < width - 1; y++)
     		{
-    			distanceOfColorX = edge [x] [y].colorDistance(edge [x + 1] [y].getColor());
-    			distanceOfColorY = edge [x] [y].colorDistance(edge [x] [y + 1].getColor());
-    			
-    			if((int) distanceOfColorX > dist)
-    			{
-    				pixels [x] [y].setRed(0);
-    				pixels [x] [y].setBlue(0);
-    				pixels [x] [y].setGreen(0);
-    			}
-    			
-    			else
-    			{
-    				pixels [x] [y].setRed(255);
-    				pixels [x] [y].setBlue(255);
-    				pixels [x] [y].setGreen(255);
-    			}
-    			
-    			if((int) distanceOfColorY > dist)
-    			{
-    				pixels [x] [y].setRed(0);
-    				pixels [x] [y].setBlue(0);
-    				pixels [x] [y].setGreen(0);
-    			}
-    			
-    			else if((int) distanceOfColorX > dist)
-    			{
-    				
-    			}
-    			else
-    			{
-    				pixels [x] [y].setRed(255);
-    				pixels [x] [y].setBlue(255);
-    				pixels [x] [y].setGreen(255);
-    			}
-    			
-    			
-    			
+    			boolean edge = colorDistanceSq(row[y], below[y]) >= limit || colorDistanceSq(row[y], row[y + 1]) >= limit;
+    			row[y] = edge ? 0x000000 : 0xffffff;
     		}
+    		store.setRow(x, 0, width - 1, row, 0);
     	}
-    	//TODO
     }
 
 
-	/** copy another picture's pixels into this picture, if a color is within dist of param Color */
-	public void chromakey(Picture other, Color color, int dist)
+	/**
+	 * find the edges in an image without changing it
+	 * @param dist how far apart neighbouring colors must be to make an edge
+	 * @return a Mask with the pixels edgeDetection would make black set
+	 */
+	public Mask edgeMask(int dist)
 	{
-		
-	    	for(int x = 0; x < pixels.length; x++)
-	    	{
-	    		for(int y = 0; y < pixels[x].length; y++)
-	    		{
-	    			if(pixels [x] [y].colorDistance(color) < dist)
-	    			{
-	    				pixels [x] [y].setColor(other.pixels [x] [y].getColor());
-	    			}
-	    		}
-	    	}
-	    	
-	    	//TODO
-	    
-
-		//TODO
+		PixelStore store = store();
+		int width = getWidth();
+		Mask edges = new Mask(width, getHeight());
+		int[] row = new int[width];
+		int[] below = new int[width];
+		long limit = dist < 0 ? 0 : (long) (dist + 1) * (dist + 1);
+
+		store.getRow(0, 0, width, below, 0);
+		for(int x = 0; x < getHeight() - 1; x++)
+		{
+			int[] temp = row;
+			row = below;
+			below = temp;
+			store.getRow(x + 1, 0, width, below, 0);
+			for(int y = 0; y < width - 1; y++)
+			{
+				if(colorDistanceSq(row[y], below[y]) >= limit || colorDistanceSq(row[y], row[y + 1]) >= limit)
+				{
+					edges.words[x * edges.stride + (y >>> 6)] |= 1L << y;
+				}
+			}
+		}
+		return edges;
 	}
 
-	/** steganography encode (hide the message in msg in this picture) */
-	public void encode(Picture msg)
+	/** copy another picture's pixels into this picture, if a color is within dist of param Color */
+	public void chromakey(Picture other, Color color, int dist)
 	{
-		for(int x = 0; x < pixels.length; x++)
+		PixelStore store = store();
+		PixelStore others = other.store();
+		int width = getWidth();
+		int[] row = new int[width];
+		int[] otherRow = new int[width];
+		int key = color.getRGB() & 0xffffff;
+		long limit = dist <= 0 ? 0 : (long) dist * dist;
+
+    	for(int x = 0; x < getHeight(); x++)
     	{
-    		for(int y = 0; y < pixels[x].length; y++)
+    		store.getRow(x, 0, width, row, 0);
+    		others.getRow(x, 0, width, otherRow, 0);
+    		boolean changed = false;
+    		for(int y = 0; y < width; y++)
     		{
-    			if(pixels [x] [y].getRed() % 2 != 0)
+    			if(colorDistanceSq(row[y], key) < limit)
     			{
-    				pixels [x] [y].setRed(pixels [x] [y].getRed() - 1);
+    				row[y] = otherRow[y];
+    				changed = true;
     			}
     		}
+    		if(changed)
+    		{
+    			store.setRow(x, 0, width, row, 0);
+    		}
     	}
-		for(int x = 0; x < pixels.length; x++)
+	}
+
+	/**
+	 * find the pixels chromakey would replace, without changing anything
+	 * @param color the key color
+	 * @param dist how close a color must be to the key
+	 * @return a Mask with the matching pixels set
+	 */
+	public Mask chromakeyMask(Color color, int dist)
+	{
+		int key = color.getRGB() & 0xffffff;
+		long limit = dist <= 0 ? 0 : (long) dist * dist;
+		return Mask.of(this, rgb -> colorDistanceSq(rgb, key) < limit);
+	}
+
+	/** steganography encode (hide the message in msg in this picture) */
+	public void encode(Picture msg)
+	{
+		PixelStore store = store();
+		PixelStore message = msg.store();
+		int width = getWidth();
+		int[] row = new int[width];
+		int[] msgRow = new int[width];
+
+		for(int x = 0; x < getHeight(); x++)
     	{
-    		for(int y = 0; y < pixels[x].length; y++)
+    		store.getRow(x, 0, width, row, 0);
+    		message.getRow(x, 0, width, msgRow, 0);
+    		for(int y = 0; y < width; y++)
     		{
-    			if(msg. pixels [x] [y].colorDistance(Color.BLACK) < 50)
-    			{
-    				pixels [x] [y].setRed(pixels [x] [y].getRed() + 1);
-    			}
+    			//clear the red LSB, then set it if the message pixel is within 50 of black
+    			int bit = colorDistanceSq(msgRow[y], 0x000000) < 50 * 50 ? 1 : 0;
+    			row[y] = (row[y] & ~0x010000) | bit << 16;
     		}
+    		store.setRow(x, 0, width, row, 0);
     	}
-		//TODO
 	}
 
 	/** steganography decode (return a new Picture containing the message hidden in this picture) */
 	public Picture decode()
 	{
-		Picture newPic = new Picture(pixels.length, pixels [0].length);
-		for(int x = 0; x < pixels.length; x++)
+		PixelStore store = store();
+		int width = getWidth();
+		PixelStore message = store.blank(width, getHeight());
+		int[] row = new int[width];
+
+		for(int x = 0; x < getHeight(); x++)
     	{
-    		for(int y = 0; y < pixels[x].length; y++)
+    		store.getRow(x, 0, width, row, 0);
+    		for(int y = 0; y < width; y++)
     		{
-    			if(pixels [x] [y].getRed() % 2 == 1)
-    			{
-    				newPic.pixels [x] [y].setColor(Color.BLACK);
-    			}
+    			row[y] = (row[y] & 0x010000) != 0 ? 0x000000 : 0xffffff;
     		}
+    		message.setRow(x, 0, width, row, 0);
     	}
-		
-		//TODO
 
-		return newPic; //REPLACE
+		return new Picture(message);
+	}
+
+	/**
+	 * steganography decode into a Mask instead of a whole Picture
+	 * @return a Mask with the pixels of the hidden message set
+	 */
+	public Mask decodeMask()
+	{
+		return Mask.of(this, rgb -> (rgb & 0x010000) != 0);
+	}
+
+	/**
+	 * how many bytes encode(InputStream, int) can hide in this picture
+	 * @param bits how many low bits of each of red, green and blue to use, 1 to 4
+	 * @return the most bytes that fit
+	 */
+	public long capacity(int bits)
+	{
+		return Steganography.capacity(store(), bits);
+	}
+
+	/**
+	 * steganography encode of any bytes (a file, some text, another picture's file...),
+	 * hidden in the low bits of red, green and blue; more bits hold more but show more
+	 * @param payload the bytes to hide, read to the end; check capacity(bits) first
+	 * @param bits how many low bits of each channel to use, 1 to 4
+	 * @return the number of bytes hidden
+	 */
+	public long encode(InputStream payload, int bits)
+	{
+		return Steganography.encode(store(), payload, bits);
+	}
+
+	/**
+	 * steganography decode of bytes hidden by encode(InputStream, int)
+	 * @param payload where to write the hidden bytes
+	 * @param bits how many low bits of each channel were used
+	 * @return the number of bytes found
+	 */
+	public long decode(OutputStream payload, int bits)
+	{
+		return Steganography.decode(store(), payload, bits);
 	}
 
 	/** perform a simple blur using the colors of neighboring pixels */
 	public Picture simpleBlur()
 	{
-		Picture newPicture = new Picture(pixels.length, pixels [0].length);
-		int totalRed = 0;
-		int totalBlue = 0;
-		int totalGreen = 0;
-		int num = 0;
-		for(int x = 0; x < pixels.length; x++)
+		PixelStore store = store();
+		int width = getWidth();
+		int height = getHeight();
+		PixelStore blurred = store.blank(width, height);
+		int[] above = new int[width];
+		int[] row = new int[width];
+		int[] below = new int[width];
+		int[] out = new int[width];
+
+		store.getRow(0, 0, width, row, 0);
+		for(int x = 0; x < height; x++)
 		{
-			for(int y = 0; y < pixels[x].length; y++)
+			if(x + 1 < height)
 			{
-				totalRed += pixels[x] [y].getRed();
-				totalGreen += pixels[x] [y].getGreen();
-				totalBlue += pixels[x] [y].getBlue();
-				num++;
-				if(x > 0) //left
-				{
-					totalRed += pixels [x-1] [y].getRed();
-					totalGreen += pixels[x-1] [y].getGreen();
-					totalBlue += pixels[x-1] [y].getBlue();
-					num++;
-				}
-				
-				if(x < pixels[x].length-2) //right
-				{
-					totalRed += pixels [x+1] [y].getRed();
-					totalGreen += pixels[x+1] [y].getGreen();
-					totalBlue += pixels[x+1] [y].getBlue();
-					num++;
-				}
-				
-				if(y > 0) //up
-				{
-					totalRed += pixels [x] [y-1].getRed();
-					totalGreen += pixels[x] [y-1].getGreen();
-					totalBlue += pixels[x] [y-1].getBlue();
-					num++;
-				}
-				
-				if(y < pixels.length-1) //down
+				store.getRow(x + 1, 0, width, below, 0);
+			}
+			for(int y = 0; y < width; y++)
+			{
+				int totalRed = 0;
+				int totalGreen = 0;
+				int totalBlue = 0;
+				int num = 0;
+				for(int n = 0; n < 5; n++)
 				{
-					totalRed += pixels [x] [y+1].getRed();
-					totalGreen += pixels[x] [y+1].getGreen();
-					totalBlue += pixels[x] [y+1].getBlue();
+					int rgb;
+					if(n == 0) rgb = row[y];
+					else if(n == 1 && x > 0) rgb = above[y]; //up
+					else if(n == 2 && x < height - 1) rgb = below[y]; //down
+					else if(n == 3 && y > 0) rgb = row[y - 1]; //left
+					else if(n == 4 && y < width - 1) rgb = row[y + 1]; //right
+					else continue;
+					totalRed += (rgb >> 16) & 0xff;
+					totalGreen += (rgb >> 8) & 0xff;
+					totalBlue += rgb & 0xff;
 					num++;
 				}
-				
-				newPicture.pixels [x] [y].setRed(totalRed/num);
-				newPicture.pixels [x] [y].setGreen(totalGreen/num);
-				newPicture.pixels [x] [y].setBlue(totalBlue/num);
-
-				
-				totalRed = 0;
-				totalGreen = 0;
-				totalBlue = 0;
-				num = 0;
-				
-				
+				out[y] = (totalRed/num) << 16 | (totalGreen/num) << 8 | (totalBlue/num);
 			}
+			blurred.setRow(x, 0, width, out, 0);
+
+			int[] temp = above;
+			above = row;
+			row = below;
+			below = temp;
 		}
-		//TODO
 
-		return newPicture; //REPLACE
+		return new Picture(blurred);
 	}
 
 	/** perform a blur using the colors of pixels within radius of current pixel */
 	public Picture blur(int radius)
 	{
-		Picture newPicture = new Picture(pixels.length, pixels [0].length);
+		PixelStore store = store();
+		int width = getWidth();
+		int height = getHeight();
+		PixelStore blurred = store.blank(width, height);
+		int[] row = new int[width];
+		int[] out = new int[width];
 		
-		for(int x = 0; x < pixels.length; x++)
+		for(int x = 0; x < height; x++)
     	{
-    		for(int y = 0; y < pixels[x].length; y++)
+    		for(int y = 0; y < width; y++)
     		{
     			int totalRed = 0;
     			int totalBlue = 0;
     			int totalGreen = 0;
     			int total = 0;
+    			int colStart = Math.max(0, y - radius);
+    			int colEnd = Math.min(width - 1, y + radius);
     			
-    			for(int row = x - radius; row <= x + radius; row++)
+    			for(int r = Math.max(0, x - radius); r <= Math.min(height - 1, x + radius); r++)
     			{
-    				for(int col = y - radius; col <= y + radius; col++)
+    				store.getRow(r, colStart, colEnd - colStart + 1, row, colStart);
+    				for(int col = colStart; col <= colEnd; col++)
     				{
-    					if(row >= 0 && col >= 0 && col < pixels [0].length && row < pixels.length)
-    					{
-    						
-    						totalRed += pixels [row] [col].getRed();
-    						totalGreen += pixels [row] [col].getGreen();
-    						totalBlue += pixels [row] [col].getBlue();
-    						total++;
-    					}
-    					
-    					
-    					
+    					totalRed += (row[col] >> 16) & 0xff;
+    					totalGreen += (row[col] >> 8) & 0xff;
+    					totalBlue += row[col] & 0xff;
+    					total++;
     				}
     			}
-    			
    
     			if(total > 0)
     			{
-    				newPicture.pixels [x] [y].setColor(totalRed/total, totalGreen/total, totalBlue/total);
+    				out[y] = (totalRed/total) << 16 | (totalGreen/total) << 8 | (totalBlue/total);
     			}
     			else
     			{
-    				newPicture.pixels [x] [y].setColor(0,0,0);
+    				out[y] = 0x000000;
     			}
     		}
+    		blurred.setRow(x, 0, width, out, 0);
     	}
-		
-		//TODO
 
-		return newPicture; //REPLACE
+		return new Picture(blurred);
 	}
 	
+	/**
+	 * Perform a Gaussian blur
+	 * @param sigma the standard deviation of the blur, in pixels
+	 * @return a new Picture with the blur applied
+	 */
+	public Picture gaussianBlur(double sigma)
+	{
+		return new Picture(GaussianBlur.blur(store(), sigma));
+	}
+
+	/**
+	 * Replace each pixel with the median of its neighbourhood, one color at a time. Removes
+	 * speckle noise without blurring edges the way the blurs do
+	 * @param radius how far the square neighbourhood reaches from each pixel
+	 * @return a new Picture with the filter applied
+	 */
+	public Picture medianFilter(int radius)
+	{
+		return new Picture(MedianFilter.filter(store(), radius));
+	}
+
+	/**
+	 * Grow the bright parts of this picture: each color becomes the brightest within a
+	 * rectangle around the pixel
+	 * @param width the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return a new Picture with the dilation applied
+	 */
+	public Picture dilate(int width, int height)
+	{
+		return new Picture(Morphology.apply(store(), width, height, true));
+	}
+
+	/**
+	 * Grow the dark parts of this picture: each color becomes the darkest within a rectangle
+	 * around the pixel
+	 * @param width the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return a new Picture with the erosion applied
+	 */
+	public Picture erode(int width, int height)
+	{
+		return new Picture(Morphology.apply(store(), width, height, false));
+	}
+
+	/**
+	 * Erode then dilate, which removes bright specks smaller than the rectangle
+	 * @param width the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return a new Picture with the opening applied
+	 */
+	public Picture open(int width, int height)
+	{
+		return new Picture(Morphology.apply(Morphology.apply(store(), width, height, false), width, height, true));
+	}
+
+	/**
+	 * Dilate then erode, which fills dark gaps smaller than the rectangle
+	 * @param width the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return a new Picture with the closing applied
+	 */
+	public Picture close(int width, int height)
+	{
+		return new Picture(Morphology.apply(Morphology.apply(store(), width, height, true), width, height, false));
+	}
+
+	/**
+	 * Convolve this picture with a kernel, repeating the edge pixels past the edges
+	 * @param kernel the weights to apply to each pixel's neighbourhood
+	 * @return a new Picture with the kernel applied
+	 */
+	public Picture convolve(Kernel kernel)
+	{
+		return convolve(kernel, BorderMode.CLAMP, Color.BLACK);
+	}
+
+	/**
+	 * Convolve this picture with a kernel
+	 * @param kernel the weights to apply to each pixel's neighbourhood
+	 * @param border how to read pixels past the edges; CONSTANT reads black
+	 * @return a new Picture with the kernel applied
+	 */
+	public Picture convolve(Kernel kernel, BorderMode border)
+	{
+		return convolve(kernel, border, Color.BLACK);
+	}
+
+	/**
+	 * Convolve this picture with a kernel
+	 * @param kernel the weights to apply to each pixel's neighbourhood
+	 * @param border how to read pixels past the edges
+	 * @param constant the color past the edges when border is CONSTANT
+	 * @return a new Picture with the kernel applied
+	 */
+	public Picture convolve(Kernel kernel, BorderMode border, Color constant)
+	{
+		return new Picture(Convolution.convolve(store(), kernel, border, constant.getRGB() & 0xffffff));
+	}
+
 	/**
 	 * Simulate looking at an image through a pane of glass
 	 * @param dist the "radius" of the neighboring pixels to use
@@ -710,11 +1343,15 @@ public class Picture {
 	 */
 	public Picture glassFilter(int dist) 
 	{
-		Picture newPicture = new Picture(pixels.length, pixels [0].length);
+		PixelStore store = store();
+		int width = getWidth();
+		int height = getHeight();
+		PixelStore glass = store.blank(width, height);
+		int[] out = new int[width];
 		
-		for(int x = 0; x < pixels.length; x++)
+		for(int x = 0; x < height; x++)
     	{
-    		for(int y = 0; y < pixels[x].length; y++)
+    		for(int y = 0; y < width; y++)
     		{
     			boolean randomExists = false;
     			int xPos = 0;
@@ -724,23 +1361,17 @@ public class Picture {
     				xPos = x + (int) (Math.random() * ((2 * dist) - 1) - (dist - 1));
     				yPos = y + (int) (Math.random() * ((2 * dist) - 1) - (dist - 1));
     				
-    				if(xPos >= 0 && xPos < pixels.length && yPos >= 0 && yPos < pixels [0].length)
+    				if(xPos >= 0 && xPos < height && yPos >= 0 && yPos < width)
     				{
     					randomExists = true;
     				}
     			}
     			
-    			newPicture.pixels [x] [y].setColor(pixels [xPos] [yPos].getColor());
-    			
-    			
-    			
-   
-    			
+    			out[y] = store.get(yPos, xPos);
     		}
+    		glass.setRow(x, 0, width, out, 0);
     	}
 		
-		//TODO
-		
-		return newPicture; 
+		return new Picture(glass); 
 	}
 }
@@ -0,0 +1,363 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * One named step of a filter chain, such as "grayscale" or "posterize:63", that runs one of
+ * {@link Picture}'s filters. Chains are written as steps separated by commas, with any
+ * arguments after the filter name separated by colons: "grayscale,posterize:63,blur:5"
+ */
+public class PictureFilter {
+
+    /** The radius of a filter that needs the whole picture at once, like a mirror */
+    public static final int GLOBAL = -1;
+
+    private final String name;
+    private final String args;
+    private final int radius;
+    private final UnaryOperator<Picture> op;
+
+    private PictureFilter(String name, String args, int radius, UnaryOperator<Picture> op) {
+        this.name = name;
+        this.args = args;
+        this.radius = radius;
+        this.op = op;
+    }
+
+    /**
+     * Parses a single filter step, like "posterize:63". Filter names aren't case-sensitive
+     * @param step The step to parse
+     * @return The filter
+     */
+    public static PictureFilter parse(String step) {
+        String[] parts = step.trim().split(":", -1);
+        String name = parts[0];
+        switch (name.toLowerCase()) {
+            case "zeroblue":
+                expectArgs(step, parts, 0);
+                return point("zeroBlue", "", p -> p.zeroBlue());
+            case "keeponlyblue":
+                expectArgs(step, parts, 0);
+                return point("keepOnlyBlue", "", p -> p.keepOnlyBlue());
+            case "negate":
+                expectArgs(step, parts, 0);
+                return point("negate", "", p -> p.negate());
+            case "grayscale":
+                expectArgs(step, parts, 0);
+                return point("grayscale", "", p -> p.grayscale());
+            case "solarize": {
+                expectArgs(step, parts, 1);
+                int threshold = intArg(step, parts[1]);
+                return point("solarize", ":"+threshold, p -> p.solarize(threshold));
+            }
+            case "tint": {
+                expectArgs(step, parts, 3);
+                double red = doubleArg(step, parts[1]);
+                double blue = doubleArg(step, parts[2]);
+                double green = doubleArg(step, parts[3]);
+                return point("tint", ":"+red+":"+blue+":"+green, p -> p.tint(red, blue, green));
+            }
+            case "posterize": {
+                expectArgs(step, parts, 1);
+                int span = intArg(step, parts[1]);
+                if (span<=0) throw new RuntimeException("Bad filter \""+step+"\": the span must be positive");
+                return point("posterize", ":"+span, p -> p.posterize(span));
+            }
+            case "equalize":
+                expectArgs(step, parts, 0);
+                return global("equalize", p -> p.equalize());
+            case "clahe": {
+                expectArgs(step, parts, 3);
+                int across = intArg(step, parts[1]);
+                int down = intArg(step, parts[2]);
+                double clipLimit = doubleArg(step, parts[3]);
+                if (across<=0 || down<=0) throw new RuntimeException("Bad filter \""+step+"\": there must be at least one tile");
+                if (!(clipLimit>=1)) throw new RuntimeException("Bad filter \""+step+"\": the clip limit must be at least 1");
+                return new PictureFilter("clahe", ":"+across+":"+down+":"+clipLimit, GLOBAL, p -> p.clahe(across, down, clipLimit));
+            }
+            case "quantize":
+            case "dither": {
+                expectArgs(step, parts, 1);
+                int colors = intArg(step, parts[1]);
+                if (colors<1 || colors>Quantizer.MAX_COLORS) {
+                    throw new RuntimeException("Bad filter \""+step+"\": the colors must be 1 to "+Quantizer.MAX_COLORS);
+                }
+                // the palette depends on the whole picture
+                boolean dither = name.equalsIgnoreCase("dither");
+                return new PictureFilter(dither ? "dither" : "quantize", ":"+colors, GLOBAL, p -> p.quantize(colors, dither));
+            }
+            case "mirrorvertical":
+                expectArgs(step, parts, 0);
+                return global("mirrorVertical", p -> p.mirrorVertical());
+            case "mirrorrighttoleft":
+                expectArgs(step, parts, 0);
+                return global("mirrorRightToLeft", p -> p.mirrorRightToLeft());
+            case "mirrorhorizontal":
+                expectArgs(step, parts, 0);
+                return global("mirrorHorizontal", p -> p.mirrorHorizontal());
+            case "verticalflip":
+                expectArgs(step, parts, 0);
+                return global("verticalFlip", p -> p.verticalFlip());
+            case "fixroof":
+                // the roof on the temple picture, or any other rectangle as fixroof:x:y:w:h
+                if (parts.length==1) return global("fixRoof", p -> p.fixRoof());
+                expectArgs(step, parts, 4);
+                int x = intArg(step, parts[1]);
+                int y = intArg(step, parts[2]);
+                int w = intArg(step, parts[3]);
+                int h = intArg(step, parts[4]);
+                return new PictureFilter("fixRoof", ":"+x+":"+y+":"+w+":"+h, GLOBAL, p -> { p.fixRoof(x, y, w, h); return p; });
+            case "edgedetection": {
+                expectArgs(step, parts, 1);
+                int dist = intArg(step, parts[1]);
+                return new PictureFilter("edgeDetection", ":"+dist, 1, p -> { p.edgeDetection(dist); return p; });
+            }
+            case "simpleblur":
+                expectArgs(step, parts, 0);
+                return new PictureFilter("simpleBlur", "", 1, Picture::simpleBlur);
+            case "blur": {
+                expectArgs(step, parts, 1);
+                int radius = intArg(step, parts[1]);
+                if (radius<0) throw new RuntimeException("Bad filter \""+step+"\": the radius can't be negative");
+                return new PictureFilter("blur", ":"+radius, radius, p -> p.blur(radius));
+            }
+            case "gaussianblur": {
+                expectArgs(step, parts, 1);
+                double sigma = doubleArg(step, parts[1]);
+                if (!(sigma>=0)) throw new RuntimeException("Bad filter \""+step+"\": the sigma can't be negative");
+                return new PictureFilter("gaussianBlur", ":"+sigma, GaussianBlur.radius(sigma), p -> p.gaussianBlur(sigma));
+            }
+            case "medianfilter": {
+                expectArgs(step, parts, 1);
+                int radius = intArg(step, parts[1]);
+                if (radius<0) throw new RuntimeException("Bad filter \""+step+"\": the radius can't be negative");
+                return new PictureFilter("medianFilter", ":"+radius, radius, p -> p.medianFilter(radius));
+            }
+            case "dilate":
+            case "erode":
+            case "open":
+            case "close": {
+                expectArgs(step, parts, 2);
+                int width = intArg(step, parts[1]);
+                int height = intArg(step, parts[2]);
+                if (width<=0 || height<=0) throw new RuntimeException("Bad filter \""+step+"\": the rectangle can't be empty");
+                String canonical = name.toLowerCase();
+                // opening and closing run two passes, so they reach twice as far
+                int reach = Math.max(width, height)/2;
+                if (canonical.equals("open") || canonical.equals("close")) reach *= 2;
+                UnaryOperator<Picture> op;
+                if (canonical.equals("dilate")) op = p -> p.dilate(width, height);
+                else if (canonical.equals("erode")) op = p -> p.erode(width, height);
+                else if (canonical.equals("open")) op = p -> p.open(width, height);
+                else op = p -> p.close(width, height);
+                return new PictureFilter(canonical, ":"+width+":"+height, reach, op);
+            }
+            case "glassfilter": {
+                expectArgs(step, parts, 1);
+                int dist = intArg(step, parts[1]);
+                if (dist<=0) throw new RuntimeException("Bad filter \""+step+"\": the distance must be positive");
+                return new PictureFilter("glassFilter", ":"+dist, dist, p -> p.glassFilter(dist));
+            }
+            default:
+                throw new RuntimeException("Unknown filter \""+name+"\"");
+        }
+    }
+
+    /**
+     * Parses a chain of filter steps separated by commas, like "grayscale,posterize:63,blur:5"
+     * @param spec The chain to parse
+     * @return The filters, in the order they should be applied
+     */
+    public static List<PictureFilter> parseChain(String spec) {
+        List<PictureFilter> filters = new ArrayList<>();
+        for (String step : spec.split(",")) {
+            if (step.isBlank()) throw new RuntimeException("Empty step in filter chain \""+spec+"\"");
+            filters.add(parse(step));
+        }
+        return filters;
+    }
+
+    /**
+     * Writes a chain back out in canonical form, so equal chains give equal strings
+     * @param filters The filters in the chain
+     * @return The chain, like "grayscale,posterize:63,blur:5"
+     */
+    public static String toSpec(List<PictureFilter> filters) {
+        StringBuilder spec = new StringBuilder();
+        for (PictureFilter filter : filters) {
+            if (spec.length()>0) spec.append(',');
+            spec.append(filter);
+        }
+        return spec.toString();
+    }
+
+    /**
+     * Runs a chain of filters
+     * @param filters The filters to run, in order
+     * @param picture The Picture to start from. It may be changed
+     * @return The result, which may be picture itself
+     */
+    public static Picture applyAll(List<PictureFilter> filters, Picture picture) {
+        for (PictureFilter filter : filters) picture = filter.apply(picture);
+        return picture;
+    }
+
+    /**
+     * Gets how far a chain of filters looks from each pixel, the sum of their radii
+     * @param filters The filters in the chain
+     * @return The chain's radius, or {@link #GLOBAL} if any filter in it is global
+     */
+    static int radius(List<PictureFilter> filters) {
+        int radius = 0;
+        for (PictureFilter filter : filters) {
+            if (filter.radius==GLOBAL) return GLOBAL;
+            radius += filter.radius;
+        }
+        return radius;
+    }
+
+    /**
+     * Makes a chain for a copy of the picture scaled by a factor, like a preview's stand-in
+     * @param filters The filters in the chain
+     * @param factor The scale of the copy
+     * @return The filters with their distances scaled, or null if any of them can't be
+     * @see #scaled(double)
+     */
+    static List<PictureFilter> scaled(List<PictureFilter> filters, double factor) {
+        List<PictureFilter> scaled = new ArrayList<>(filters.size());
+        for (PictureFilter filter : filters) {
+            PictureFilter step = filter.scaled(factor);
+            if (step==null) return null;
+            scaled.add(step);
+        }
+        return scaled;
+    }
+
+        private static PictureFilter point(String name, String args, Consumer<Picture> filter) {
+        return new PictureFilter(name, args, 0, p -> { filter.accept(p); return p; });
+    }
+
+    private static PictureFilter global(String name, Consumer<Picture> filter) {
+        return new PictureFilter(name, "", GLOBAL, p -> { filter.accept(p); return p; });
+    }
+
+    private static void expectArgs(String step, String[] parts, int count) {
+        if (parts.length-1!=count) throw new RuntimeException("Bad filter \""+step+"\": expected "+count+" argument(s)");
+    }
+
+    private static int intArg(String step, String arg) {
+        try {
+            return Integer.parseInt(arg.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Bad filter \""+step+"\": \""+arg+"\" is not a whole number");
+        }
+    }
+
+    private static double doubleArg(String step, String arg) {
+        try {
+            return Double.parseDouble(arg.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Bad filter \""+step+"\": \""+arg+"\" is not a number");
+        }
+    }
+
+    /**
+     * Runs this filter
+     * @param picture The Picture to filter. Filters that work in place change it
+     * @return The result, which is picture itself for filters that work in place
+     */
+    public Picture apply(Picture picture) {
+        return op.apply(picture);
+    }
+
+    /**
+     * Runs this filter on a rectangle of a Picture, leaving the rest of it alone. Only the
+     * rectangle and the neighbourhood the filter reads around it are processed, except for
+     * {@link #GLOBAL} filters, which still run on the whole picture
+     * @param picture The Picture to change
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle. Parts of the rectangle outside the picture are ignored
+     */
+    public void apply(Picture picture, int x, int y, int w, int h) {
+        Regions.rectangle(picture.store(), op, radius, x, y, w, h);
+    }
+
+    /**
+     * Runs this filter on the pixels of a Picture that are set in a {@link Mask}, leaving the
+     * rest of it alone. Only bands of rows with pixels set are processed, each across just
+     * the columns they span, except for {@link #GLOBAL} filters, which still run on the
+     * whole picture
+     * @param picture The Picture to change
+     * @param mask The pixels to change; must be the same size as the picture
+     */
+    public void apply(Picture picture, Mask mask) {
+        picture.checkMask(mask);
+        Regions.masked(picture.store(), op, radius, mask);
+    }
+
+    /**
+     * Makes the same filter for a copy of the picture scaled by a factor, with the distances
+     * in its arguments (radii, sigmas, rectangles) scaled to match, so that it looks the same
+     * on the copy as this filter does on the picture
+     * @param factor The scale of the copy
+     * @return The scaled filter, this filter if its arguments aren't distances, or null if its
+     *         distances are fixed (a one-pixel neighbourhood, or the temple's roof)
+     */
+    PictureFilter scaled(double factor) {
+        String[] parts = args.split(":", -1);
+        switch (name) {
+            case "blur":
+            case "medianFilter":
+                return parse(name+":"+Math.round(factor*intArg(name, parts[1])));
+            case "gaussianBlur":
+                return parse(name+":"+factor*doubleArg(name, parts[1]));
+            case "glassFilter":
+                return parse(name+":"+Math.max(1, Math.round(factor*intArg(name, parts[1]))));
+            case "dilate":
+            case "erode":
+            case "open":
+            case "close":
+                return parse(name+":"+Math.max(1, Math.round(factor*intArg(name, parts[1])))
+                        +":"+Math.max(1, Math.round(factor*intArg(name, parts[2]))));
+            case "fixRoof":
+                if (parts.length==1) return null;
+                return parse(name+":"+(int)(factor*intArg(name, parts[1]))+":"+(int)(factor*intArg(name, parts[2]))
+                        +":"+Math.max(1, Math.round(factor*intArg(name, parts[3])))
+                        +":"+Math.max(1, Math.round(factor*intArg(name, parts[4]))));
+            case "simpleBlur":
+            case "edgeDetection":
+                return factor==1 ? this : null;
+            default:
+                return this;
+        }
+    }
+
+    /**
+     * Gets the name of the filter, which is the name of the {@link Picture} method it runs
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets how many pixels away from a pixel, in any direction, this filter looks
+     * @return 0 for point filters, the neighbourhood radius for blurs, or {@link #GLOBAL}
+     *         if the filter needs the whole picture
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Returns the step in canonical form, like "posterize:63"
+     * @return The step
+     */
+    @Override
+    public String toString() {
+        return name+args;
+    }
+}
@@ -1,53 +1,167 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 /**
  * A GUI to view a {@link Picture}
  * GUI contributed by Liberty student Ben Wyatt, 2017
  * with very minor visual tweaks by Mr. Bunn
+ *
+ * The viewer keeps its own copy of the picture as a {@link BufferedImage}, made once, which
+ * both paints the view and answers the label's color lookups. Painting draws just the part
+ * of the image under the clip (the visible part of the scroll pane) with one scaled drawImage.
+ *
+ * Pictures too big for one image are viewed tiled instead: a mipmap {@link Pyramid} is built
+ * in the background, and painting draws only the {@link #TILE_SIZE} tiles that meet the clip,
+ * from the level whose pixels are closest to (but no smaller than) the screen's. Tiles are
+ * rendered on a background thread and kept in an LRU; until a tile is ready, a cached tile
+ * from a coarser level stands in for it. Zoom is fractional either way: Ctrl and the mouse
+ * wheel zoom around the mouse. Dragging the cursor updates it at most once a frame, and
+ * repaints only around its old and new crosshairs.
+ *
+ * Filters can be previewed live (except in tiled mode), from the Filter menu or with
+ * {@link #preview(String)}. A preview runs on a background thread, first on a stand-in
+ * shrunk to at most {@link #PROXY_SIZE} pixels each way (with the filters' radii shrunk to
+ * match), then at full size a strip of rows at a time; each result is swapped in on the event
+ * thread as it arrives. Starting a new preview (moving a slider, say) cancels the one
+ * before: if it hasn't started it never will, and if it has it stops at the next strip.
  */
 public class PictureViewer {
 
+    /** Pictures with more pixels than this are viewed tiled by {@link Picture#view()} */
+    static final long TILED_PIXELS = 1L<<24;
+
+    /** The width and height of a tile in tiled mode */
+    static final int TILE_SIZE = 256;
+
+    /** The most memory the rendered tiles of one tiled viewer may take */
+    private static final long TILE_CACHE_BYTES = 64L<<20;
+
+    private static final double MIN_ZOOM = 1.0/256;
+    private static final double MAX_ZOOM = 32;
+
+    /** The time between display frames, which cursor moves are batched into */
+    private static final int FRAME_MILLIS = 16;
+
+    /** How much one step of Zoom In, or one notch of the mouse wheel, zooms by */
+    private static final double ZOOM_STEP = 1.25;
+
+    /** The most pixels each way of the stand-in that previews run on first */
+    static final int PROXY_SIZE = 512;
+
+    /** The fewest rows a full-size preview filters between checks for a newer preview */
+    private static final int PREVIEW_ROWS = 256;
+
     private JFrame frame;
     private PictureView pictureView;
     private JLabel label;
 
+    /** The picture as it was given, for previews to start from; null in tiled mode */
+    private Picture original;
+    private BufferedImage originalImage;
+
+    /** A shrunk copy of the original, made by the preview thread the first time it is needed */
+    private Picture proxy;
+
+    /** The number of the newest preview; older ones stop when they see it has changed */
+    private final AtomicLong previews = new AtomicLong();
+    private ExecutorService previewer;
+    private Future<?> previewJob;
+
     /**
      * Creates a PictureViewer with a given {@link Picture}
      * @param picture The {@link Picture} to view
      */
     public PictureViewer(Picture picture) {
-        picture = new Picture(picture);
+        this(picture, false);
+    }
+
+    /**
+     * Creates a PictureViewer with a given {@link Picture}
+     * @param picture The {@link Picture} to view
+     * @param tiled true to view the picture tiled, as for pictures too big to fit in memory
+     *              twice, false to copy it into a single image
+     */
+    public PictureViewer(Picture picture, boolean tiled) {
         frame = new JFrame();
         frame.setLayout(new BorderLayout(0, 20));
         frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
-        frame.setResizable(false);
+        frame.setResizable(tiled);
 
         label = new JLabel("", SwingConstants.CENTER);
         frame.add(label, BorderLayout.NORTH);
-        
+
         Point cursor = new Point(0, 0);
 
-        pictureView = new PictureView(picture, cursor);
-        JScrollPane p = new JScrollPane(pictureView);
+        JScrollPane p = new JScrollPane();
+        if (tiled) {
+            pictureView = new PictureView(new Tiles(new Picture(picture).store(), p), cursor, tiled);
+        } else {
+            original = new Picture(picture);
+            originalImage = original.toBufferedImage();
+            pictureView = new PictureView(new Blit(originalImage), cursor, tiled);
+            previewer = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "Picture viewer preview");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        p.setViewportView(pictureView);
         frame.add(p, BorderLayout.SOUTH);
         frame.pack();
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                pictureView.renderer.dispose();
+                if (previewer!=null) {
+                    previews.incrementAndGet();
+                    previewer.shutdownNow();
+                }
+            }
+        });
         JMenuBar menu = new JMenuBar();
         JMenu m = new JMenu("Zoom");
-        JMenuItem item = new JMenuItem("Original");
-        item.addActionListener(e -> {pictureView.zoom = 1; pictureView.revalidate();});
+        JMenuItem item = new JMenuItem("Zoom In");
+        item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, InputEvent.CTRL_DOWN_MASK));
+        item.addActionListener(e -> pictureView.zoomBy(ZOOM_STEP, null));
+        m.add(item);
+        item = new JMenuItem("Zoom Out");
+        item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, InputEvent.CTRL_DOWN_MASK));
+        item.addActionListener(e -> pictureView.zoomBy(1/ZOOM_STEP, null));
+        m.add(item);
+        item = new JMenuItem("Fit");
+        item.addActionListener(e -> pictureView.fit());
+        m.add(item);
+        m.addSeparator();
+        item = new JMenuItem("Original");
+        item.addActionListener(e -> pictureView.setZoom(1, null));
         m.add(item);
         for (int i = 200; i<=1200; i+=200) {
             item = new JMenuItem(i+"%");
             int x = i;
-            item.addActionListener(e -> {pictureView.zoom = x/100; pictureView.revalidate();});
+            item.addActionListener(e -> pictureView.setZoom(x/100.0, null));
             m.add(item);
         }
         menu.add(m);
+        if (!tiled) menu.add(filterMenu());
         frame.setJMenuBar(menu);
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
@@ -60,21 +174,390 @@ public class PictureViewer {
         frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
     }
 
-    private static String makeLabelText(Point cursor, Color color) {
-        return String.format("<html><div style='text-align: center;'>Row: %d, Col: %d<br><font color=\"red\">Red</font> = %d, <font color=\"green\">Green</font> = %d, <font color=\"blue\">Blue</font> = %d</div></html>", cursor.y, cursor.x, color.getRed(), color.getGreen(), color.getBlue());
+    /**
+     * Shows the picture with a chain of filters applied, like "grayscale,posterize:63",
+     * leaving the picture itself alone. Returns at once; the preview appears when it is
+     * ready, unless another preview is started first
+     * @param chain The filters to preview, as for {@link PictureFilter#parseChain(String)}
+     */
+    public void preview(String chain) {
+        startPreview(PictureFilter.parseChain(chain));
+    }
+
+    /**
+     * Goes back to showing the picture without any filters
+     */
+    public void clearPreview() {
+        startPreview(List.of());
+    }
+
+    private void startPreview(List<PictureFilter> filters) {
+        if (original==null) throw new RuntimeException("Previews aren't available in a tiled viewer");
+        long id = previews.incrementAndGet();
+        synchronized (previews) {
+            // a job that hasn't started yet is simply dropped; one that has stops at its next check
+            if (previewJob!=null) previewJob.cancel(false);
+            previewJob = previewer.submit(() -> runPreview(filters, id));
+        }
+    }
+
+    /** Runs on the preview thread */
+    private void runPreview(List<PictureFilter> filters, long id) {
+        if (filters.isEmpty()) {
+            show(originalImage, id);
+            return;
+        }
+        UnaryOperator<Picture> chain = p -> PictureFilter.applyAll(filters, p);
+        if (proxy==null) {
+            Pyramid pyramid = new Pyramid(original.store(), PROXY_SIZE);
+            pyramid.build(() -> {});
+            proxy = new Picture(pyramid.level(pyramid.size()-1));
+        }
+        // the stand-in is smaller, so the chain's distances are scaled down to match; a chain
+        // with a filter fixed at one pixel would look too strong on it, so goes straight to full size
+        List<PictureFilter> quickFilters = PictureFilter.scaled(filters, (double)proxy.getWidth()/original.getWidth());
+        if (proxy.getWidth()!=original.getWidth() && quickFilters!=null) {
+            Picture quick = PictureFilter.applyAll(quickFilters, new Picture(proxy));
+            if (previews.get()!=id) return;
+            show(quick.toBufferedImage(), id);
+        }
+
+        PixelStore src = original.store();
+        PixelStore dst = src.blank(src.width, src.height);
+        int halo = PictureFilter.radius(filters);
+        int rows = halo<0 ? src.height : Math.max(PREVIEW_ROWS, 4*halo);
+        for (int y = 0; y<src.height; y += rows) {
+            if (previews.get()!=id) return;
+            Regions.rectangle(src, dst, chain, halo, 0, y, src.width, rows);
+        }
+        if (previews.get()!=id) return;
+        show(new Picture(dst).toBufferedImage(), id);
+    }
+
+    /** Swaps an image into the view on the event thread, unless a newer preview has started */
+    private void show(BufferedImage image, long id) {
+        SwingUtilities.invokeLater(() -> {
+            if (previews.get()!=id) return;
+            ((Blit)pictureView.renderer).image = image;
+            pictureView.setLabelText();
+            pictureView.repaint();
+        });
+    }
+
+    private JMenu filterMenu() {
+        JMenu m = new JMenu("Filter");
+        JMenuItem item = new JMenuItem("Original");
+        item.addActionListener(e -> clearPreview());
+        m.add(item);
+        m.addSeparator();
+        for (String name : new String[] {"grayscale", "negate", "zeroBlue", "keepOnlyBlue", "edgeDetection:20", "simpleBlur"}) {
+            item = new JMenuItem(name);
+            item.addActionListener(e -> preview(name));
+            m.add(item);
+        }
+        m.addSeparator();
+        addSlider(m, "posterize", 1, 128, 32);
+        addSlider(m, "solarize", 0, 255, 128);
+        addSlider(m, "blur", 0, 20, 3);
+        addSlider(m, "gaussianBlur", 0, 50, 2);
+        addSlider(m, "medianFilter", 0, 20, 2);
+        m.addSeparator();
+        item = new JMenuItem("Chain...");
+        item.addActionListener(e -> {
+            String chain = JOptionPane.showInputDialog(frame, "Filters, like grayscale,posterize:63,blur:5");
+            if (chain==null || chain.isBlank()) return;
+            try {
+                preview(chain);
+            } catch (RuntimeException ex) {
+                JOptionPane.showMessageDialog(frame, ex.getMessage(), "Bad filter chain", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        m.add(item);
+        return m;
+    }
+
+    /** Adds a menu item that opens a slider for a filter's one argument, previewing as it moves */
+    private void addSlider(JMenu m, String name, int min, int max, int value) {
+        JMenuItem item = new JMenuItem(name+"...");
+        item.addActionListener(e -> {
+            JDialog dialog = new JDialog(frame, name, false);
+            JSlider slider = new JSlider(min, max, value);
+            slider.setMajorTickSpacing(Math.max(1, (max-min)/4));
+            slider.setPaintTicks(true);
+            slider.setPaintLabels(true);
+            slider.addChangeListener(c -> preview(name+":"+slider.getValue()));
+            dialog.add(slider);
+            dialog.pack();
+            dialog.setLocationRelativeTo(frame);
+            dialog.setVisible(true);
+            preview(name+":"+value);
+        });
+        m.add(item);
+    }
+
+    private static String makeLabelText(Point cursor, int rgb) {
+        return "<html><div style='text-align: center;'>Row: "+cursor.y+", Col: "+cursor.x
+                +"<br><font color=\"red\">Red</font> = "+(rgb>>16 & 0xff)
+                +", <font color=\"green\">Green</font> = "+(rgb>>8 & 0xff)
+                +", <font color=\"blue\">Blue</font> = "+(rgb & 0xff)+"</div></html>";
+    }
+
+    /** Where a view's pixels come from, and how they are drawn */
+    private interface Renderer {
+        int getWidth();
+        int getHeight();
+
+        /** The packed color of a pixel, for the label */
+        int getRGB(int x, int y);
+
+        /**
+         * Draws the part of the picture under the clip
+         * @param g The graphics, in view coordinates
+         * @param clip The part of the view to draw
+         * @param zoom The number of view pixels per picture pixel
+         */
+        void paint(Graphics2D g, Rectangle clip, double zoom);
+
+        /** Stops any background work; called when the window closes */
+        void dispose();
+    }
+
+    /**
+     * The view of an ordinary picture: one image, drawn a clip at a time. The image can be
+     * swapped for another on the event thread, such as a preview, which may be smaller than
+     * the picture and is then scaled up to its size
+     */
+    private static final class Blit implements Renderer {
+        private final int width;
+        private final int height;
+        BufferedImage image;
+
+        Blit(BufferedImage image) {
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.image = image;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getRGB(int x, int y) {
+            return image.getRGB(x*image.getWidth()/width, y*image.getHeight()/height) & 0xffffff;
+        }
+
+        @Override
+        public void paint(Graphics2D g, Rectangle clip, double zoom) {
+            // the picture pixels under the clip, scaled up (or down) to the view
+            int x0 = Math.max(0, (int)Math.floor(clip.x/zoom));
+            int y0 = Math.max(0, (int)Math.floor(clip.y/zoom));
+            int x1 = Math.min(width, (int)Math.ceil((clip.x+clip.width)/zoom));
+            int y1 = Math.min(height, (int)Math.ceil((clip.y+clip.height)/zoom));
+            if (x0>=x1 || y0>=y1) return;
+            if (image.getWidth()==width && image.getHeight()==height) {
+                g.drawImage(image, toView(x0, zoom), toView(y0, zoom), toView(x1, zoom), toView(y1, zoom), x0, y0, x1, y1, null);
+            } else {
+                // a stand-in: scale the whole of it to the picture's size, and let the clip cut it down
+                g.drawImage(image, 0, 0, toView(width, zoom), toView(height, zoom), null);
+            }
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    /** The view of a huge picture: tiles from a mipmap pyramid, rendered in the background */
+    private static final class Tiles implements Renderer {
+        private final PixelStore base;
+        private final Pyramid pyramid;
+        private final Component owner;
+        private final ExecutorService renderer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "Picture viewer tiles");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+        /** The tiles the last paint wanted; requests for others are dropped when their turn comes */
+        private volatile Set<Long> wanted = Set.of();
+
+        private final Map<Long, BufferedImage> cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+                return size()>TILE_CACHE_BYTES/(4L*TILE_SIZE*TILE_SIZE);
+            }
+        };
+
+        Tiles(PixelStore base, Component owner) {
+            this.base = base;
+            this.owner = owner;
+            pyramid = new Pyramid(base, TILE_SIZE);
+            Thread builder = new Thread(() -> pyramid.build(owner::repaint), "Picture viewer pyramid");
+            builder.setDaemon(true);
+            builder.setPriority(Thread.MIN_PRIORITY);
+            builder.start();
+        }
+
+        @Override
+        public int getWidth() {
+            return base.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return base.height;
+        }
+
+        @Override
+        public int getRGB(int x, int y) {
+            int[] pixel = new int[1];
+            Pyramid.readRow(base, y, x, 1, pixel, 0);
+            return pixel[0];
+        }
+
+        @Override
+        public void paint(Graphics2D g, Rectangle clip, double zoom) {
+            // the coarsest level with at least one pixel per view pixel. Tiles never shrink by
+            // half or more, so drawing them nearest-neighbour looks fine and is far faster than bilinear
+            int level = zoom>=1 ? 0 : Math.min(pyramid.size()-1, (int)Math.floor(-Math.log(zoom)/Math.log(2)+1e-9));
+            // a level that isn't built yet can borrow from a finer one, if it isn't much bigger
+            for (int finer = level; finer>=Math.max(0, level-2); finer--) {
+                if (pyramid.level(finer)!=null) {
+                    level = finer;
+                    break;
+                }
+            }
+            boolean ready = pyramid.level(level)!=null;
+            double scale = zoom*(1<<level);
+            int width = levelSize(base.width, level);
+            int height = levelSize(base.height, level);
+            int tx0 = Math.max(0, (int)(clip.x/scale)/TILE_SIZE);
+            int ty0 = Math.max(0, (int)(clip.y/scale)/TILE_SIZE);
+            int tx1 = Math.min((width-1)/TILE_SIZE, (int)((clip.x+clip.width-1)/scale)/TILE_SIZE);
+            int ty1 = Math.min((height-1)/TILE_SIZE, (int)((clip.y+clip.height-1)/scale)/TILE_SIZE);
+
+            Set<Long> visible = new HashSet<>();
+            for (int ty = ty0; ty<=ty1; ty++) {
+                for (int tx = tx0; tx<=tx1; tx++) {
+                    long key = key(level, tx, ty);
+                    visible.add(key);
+                    int x0 = tx*TILE_SIZE;
+                    int y0 = ty*TILE_SIZE;
+                    int x1 = Math.min(width, x0+TILE_SIZE);
+                    int y1 = Math.min(height, y0+TILE_SIZE);
+                    BufferedImage tile;
+                    synchronized (cache) {
+                        tile = cache.get(key);
+                    }
+                    if (tile!=null) {
+                        g.drawImage(tile, toView(x0, scale), toView(y0, scale), toView(x1, scale), toView(y1, scale), 0, 0, x1-x0, y1-y0, null);
+                        continue;
+                    }
+                    if (ready) request(key, level, tx, ty);
+                    drawStandIn(g, level, x0, y0, x1, y1, scale);
+                }
+            }
+            wanted = visible;
+        }
+
+        /** Draws part of a cached tile from a coarser level over a tile that isn't ready, or a blank */
+        private void drawStandIn(Graphics2D g, int level, int x0, int y0, int x1, int y1, double scale) {
+            for (int coarser = level+1; coarser<pyramid.size(); coarser++) {
+                int shift = coarser-level;
+                BufferedImage tile;
+                synchronized (cache) {
+                    tile = cache.get(key(coarser, (x0>>shift)/TILE_SIZE, (y0>>shift)/TILE_SIZE));
+                }
+                if (tile==null) continue;
+                int left = (x0>>shift)/TILE_SIZE*TILE_SIZE;
+                int top = (y0>>shift)/TILE_SIZE*TILE_SIZE;
+                int sx0 = (x0>>shift)-left;
+                int sy0 = (y0>>shift)-top;
+                int sx1 = Math.min(tile.getWidth(), Math.max(sx0+1, ((x1+(1<<shift)-1)>>shift)-left));
+                int sy1 = Math.min(tile.getHeight(), Math.max(sy0+1, ((y1+(1<<shift)-1)>>shift)-top));
+                g.drawImage(tile, toView(x0, scale), toView(y0, scale), toView(x1, scale), toView(y1, scale), sx0, sy0, sx1, sy1, null);
+                return;
+            }
+            g.setColor(Color.LIGHT_GRAY);
+            g.fillRect(toView(x0, scale), toView(y0, scale), toView(x1, scale)-toView(x0, scale), toView(y1, scale)-toView(y0, scale));
+        }
+
+        private void request(long key, int level, int tx, int ty) {
+            if (!pending.add(key)) return;
+            renderer.execute(() -> {
+                try {
+                    if (!wanted.contains(key)) return;
+                    BufferedImage tile = render(pyramid.level(level), tx, ty);
+                    synchronized (cache) {
+                        cache.put(key, tile);
+                    }
+                    owner.repaint();
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        }
+
+        private static BufferedImage render(PixelStore store, int tx, int ty) {
+            int x0 = tx*TILE_SIZE;
+            int y0 = ty*TILE_SIZE;
+            int w = Math.min(TILE_SIZE, store.width-x0);
+            int h = Math.min(TILE_SIZE, store.height-y0);
+            int[] pixels = new int[w*h];
+            for (int y = 0; y<h; y++) Pyramid.readRow(store, y0+y, x0, w, pixels, y*w);
+            BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            tile.getRaster().setDataElements(0, 0, w, h, pixels);
+            return tile;
+        }
+
+        /** The size of a level, which halves (rounding up) from one level to the next */
+        private static int levelSize(int size, int level) {
+            for (int l = 0; l<level; l++) size = (size+1)/2;
+            return size;
+        }
+
+        private static long key(int level, int tx, int ty) {
+            return (long)level<<48 | (long)tx<<24 | ty;
+        }
+
+        @Override
+        public void dispose() {
+            pyramid.cancel();
+            renderer.shutdownNow();
+        }
+    }
+
+    /** Where the edge of picture pixel i falls in the view */
+    private static int toView(int i, double zoom) {
+        return (int)Math.round(i*zoom);
     }
 
     private class PictureView extends JPanel implements Scrollable {
 
         Dimension size;
-        Picture picture;
+        Renderer renderer;
         Point cursor;
-        int zoom = 1;
+        /** Where the cursor will move to at the next frame */
+        final Point next = new Point();
+        final Timer frameTimer = new Timer(FRAME_MILLIS, e -> flushCursor());
+        double zoom = 1;
+        boolean tiled;
         boolean moveCursor;
-        public PictureView(Picture picture, Point cursor) {
-            this.picture = picture;
-            this.size = new Dimension(picture.getWidth(), picture.getHeight());
+        public PictureView(Renderer renderer, Point cursor, boolean tiled) {
+            this.renderer = renderer;
+            this.size = new Dimension(renderer.getWidth(), renderer.getHeight());
             this.cursor = cursor;
+            this.tiled = tiled;
+            next.setLocation(cursor);
+            frameTimer.setRepeats(false);
             setLabelText();
             this.addMouseListener(new MouseListener() {
                 @Override
@@ -84,13 +567,7 @@ public class PictureViewer {
 
                 @Override
                 public void mousePressed(MouseEvent e) {
-                    int x = e.getX()/zoom;
-                    int y = e.getY()/zoom;
-                    if (x<0 || x>=size.width || y<0 || y>=size.height) return;
-                    cursor.x = x;
-                    cursor.y = y;
-                    repaint();
-                    setLabelText();
+                    moveCursor(e);
                 }
 
                 @Override
@@ -109,13 +586,7 @@ public class PictureViewer {
             this.addMouseMotionListener(new MouseMotionListener() {
                 @Override
                 public void mouseDragged(MouseEvent e) {
-                    int x = e.getX()/zoom;
-                    int y = e.getY()/zoom;
-                    if (x<0 || x>=size.width || y<0 || y>=size.height) return;
-                    cursor.x = x;
-                    cursor.y = y;
-                    repaint();
-                    setLabelText();
+                    moveCursor(e);
                 }
 
                 @Override
@@ -123,38 +594,119 @@ public class PictureViewer {
 
                 }
             });
+            this.addMouseWheelListener(e -> {
+                if (e.isControlDown()) {
+                    zoomBy(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getPoint());
+                } else if (getParent()!=null && getParent().getParent()!=null) {
+                    // plain wheel events still scroll
+                    Container scrollPane = getParent().getParent();
+                    scrollPane.dispatchEvent(SwingUtilities.convertMouseEvent(this, e, scrollPane));
+                }
+            });
         }
 
         private void setLabelText() {
-            label.setText(makeLabelText(cursor, picture.getPixel(cursor.x, cursor.y).getColor()));
+            label.setText(makeLabelText(cursor, renderer.getRGB(cursor.x, cursor.y)));
+        }
+
+        /**
+         * Notes where the mouse has moved the cursor to. Mouse events can come much faster
+         * than the screen refreshes, so the cursor only actually moves when the frame timer
+         * fires, once per frame at most, to the last place it was sent
+         */
+        private void moveCursor(MouseEvent e) {
+            int x = (int)(e.getX()/zoom);
+            int y = (int)(e.getY()/zoom);
+            if (x<0 || x>=size.width || y<0 || y>=size.height) return;
+            next.x = x;
+            next.y = y;
+            if (!frameTimer.isRunning()) frameTimer.start();
+        }
+
+        /** Moves the cursor to the last place the mouse sent it, repainting only the crosshairs */
+        private void flushCursor() {
+            if (next.equals(cursor)) return;
+            Rectangle old = crosshair(cursor);
+            cursor.setLocation(next);
+            paintImmediately(old);
+            paintImmediately(crosshair(cursor));
+            setLabelText();
+        }
+
+        /** The part of the view the crosshair around a picture pixel covers */
+        private Rectangle crosshair(Point p) {
+            int x = toView(p.x-5, zoom);
+            int y = toView(p.y-5, zoom);
+            return new Rectangle(x, y, toView(p.x+6, zoom)-x+1, toView(p.y+6, zoom)-y+1);
+        }
+
+        void zoomBy(double factor, Point anchor) {
+            setZoom(zoom*factor, anchor);
+        }
+
+        /** Zooms to fit the picture in the window */
+        void fit() {
+            Dimension extent = getParent() instanceof JViewport ? ((JViewport)getParent()).getExtentSize() : getVisibleRect().getSize();
+            setZoom(Math.min((double)extent.width/size.width, (double)extent.height/size.height), null);
+        }
+
+        /**
+         * Sets the zoom, keeping the picture pixel under anchor where it is
+         * @param zoom The number of view pixels per picture pixel
+         * @param anchor A point in view coordinates, or null for the middle of the visible part
+         */
+        void setZoom(double zoom, Point anchor) {
+            zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+            Rectangle visible = getVisibleRect();
+            if (anchor==null) anchor = new Point(visible.x+visible.width/2, visible.y+visible.height/2);
+            double x = anchor.x/this.zoom;
+            double y = anchor.y/this.zoom;
+            this.zoom = zoom;
+            setSize(getPreferredSize());
+            if (getParent() instanceof JViewport) {
+                JViewport viewport = (JViewport)getParent();
+                int left = (int)Math.round(x*zoom)-(anchor.x-visible.x);
+                int top = (int)Math.round(y*zoom)-(anchor.y-visible.y);
+                left = Math.max(0, Math.min(left, getWidth()-visible.width));
+                top = Math.max(0, Math.min(top, getHeight()-visible.height));
+                viewport.setViewPosition(new Point(left, top));
+            }
+            revalidate();
+            repaint();
         }
 
         @Override
         public void paintComponent(Graphics g) {
             super.paintComponent(g);
-            for (int y = 0; y<size.height; y++) {
-                for (int x = 0; x<size.width; x++) {
-                    g.setColor(picture.getPixel(x, y).getColor());
-                    g.fillRect(x*zoom, y*zoom, zoom, zoom);
-                }
-            }
+            Rectangle clip = g.getClipBounds();
+            if (clip==null) clip = new Rectangle(getPreferredSize());
+            renderer.paint((Graphics2D)g, clip, zoom);
             g.setColor(Color.BLACK);
             for (int i = -5; i<=5; i++) {
                 if (i==0) continue;
                 Point p = new Point(cursor.x+i, cursor.y);
-                if (p.x>=0 && p.x<size.width) g.fillRect(p.x*zoom, p.y*zoom, zoom, zoom);
+                if (p.x>=0 && p.x<size.width) fillPixel(g, p);
                 p = new Point(cursor.x, cursor.y+i);
-                if (p.y>=0 && p.y<size.height) g.fillRect(p.x*zoom, p.y*zoom, zoom, zoom);
+                if (p.y>=0 && p.y<size.height) fillPixel(g, p);
             }
         }
 
+        /** Fills the view pixels covering one picture pixel, at least one of them */
+        private void fillPixel(Graphics g, Point p) {
+            int x = toView(p.x, zoom);
+            int y = toView(p.y, zoom);
+            g.fillRect(x, y, Math.max(1, toView(p.x+1, zoom)-x), Math.max(1, toView(p.y+1, zoom)-y));
+        }
+
         @Override
         public Dimension getPreferredSize() {
-            return new Dimension(size.width*zoom, size.height*zoom);
+            return new Dimension((int)Math.ceil(size.width*zoom), (int)Math.ceil(size.height*zoom));
         }
 
         @Override
         public Dimension getPreferredScrollableViewportSize() {
+            // a tiled picture is too big to show whole, so start with a window's worth of it
+            if (tiled) return new Dimension(Math.min(size.width, 1024), Math.min(size.height, 768));
             return new Dimension(size.width, size.height);
         }
 
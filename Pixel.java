@@ -2,6 +2,8 @@ import java.awt.*;
 
 /**
  * A class that contains a red, green, and blue color value for a pixel.
+ * A Pixel either holds its own values, or (when it came from {@link Picture#getPixel(int, int)})
+ * is a view of one location in a {@link Picture}, so that setting its color changes the Picture.
  */
 public class Pixel {
 
@@ -9,6 +11,11 @@ public class Pixel {
 	private int green;
 	private int blue;
 
+	/** The Picture this Pixel is a view of, or null if it holds its own values */
+	private final Picture picture;
+	private final int x;
+	private final int y;
+
 	/**
 	 * Creates a Pixel with color values red, green, and blue.
 	 * @param red The red value of the Pixel, from 0-255
@@ -16,6 +23,7 @@ public class Pixel {
 	 * @param blue The blue value of the Pixel, from 0-255
 	 */
 	public Pixel(int red, int green, int blue) {
+		this(null, 0, 0);
 		this.red   = red;
 		this.green = green;
 		this.blue  = blue;
@@ -26,9 +34,69 @@ public class Pixel {
 	 * @param color {@link Color} of the Pixel
 	 */
 	public Pixel(Color color) {
-		this.red   = color.getRed();
-		this.green = color.getGreen();
-		this.blue  = color.getBlue();
+		this(color.getRed(), color.getGreen(), color.getBlue());
+	}
+
+	/**
+	 * Creates a Pixel that is a view of one location in a {@link Picture}
+	 * @param picture The {@link Picture} to read and write
+	 * @param x The x location in the Picture
+	 * @param y The y location in the Picture
+	 */
+	Pixel(Picture picture, int x, int y) {
+		this.picture = picture;
+		this.x = x;
+		this.y = y;
+	}
+
+	/**
+	 * Checks whether this Pixel is the view of one location in a {@link Picture}
+	 * @param picture The {@link Picture}
+	 * @param x The x location
+	 * @param y The y location
+	 * @return true if reading and writing this Pixel reads and writes that location
+	 */
+	boolean isViewOf(Picture picture, int x, int y) {
+		return picture!=null && this.picture==picture && this.x==x && this.y==y;
+	}
+
+	/**
+	 * Packs a color into a single int, 0xRRGGBB, clamping each value to 0-255
+	 * @param red The red value
+	 * @param green The green value
+	 * @param blue The blue value
+	 * @return The packed color
+	 */
+	static int pack(int red, int green, int blue) {
+		return clamp(red)<<16 | clamp(green)<<8 | clamp(blue);
+	}
+
+	/**
+	 * Clamps a color value to 0-255
+	 * @param value The value to clamp
+	 * @return The clamped value
+	 */
+	static int clamp(int value) {
+		return value<0 ? 0 : value>255 ? 255 : value;
+	}
+
+	/**
+	 * Gets the color of the Pixel packed into a single int, 0xRRGGBB
+	 * @return The packed color of the Pixel
+	 */
+	public int getRGB() {
+		if (picture!=null) return picture.getRGB(x, y);
+		return pack(red, green, blue);
+	}
+
+	/**
+	 * Replaces one channel of this Pixel's location in its {@link Picture}
+	 * @param shift The bit position of the channel (16 for red, 8 for green, 0 for blue)
+	 * @param value The new value of the channel
+	 */
+	private void setChannel(int shift, int value) {
+		int rgb = picture.getRGB(x, y);
+		picture.setRGB(x, y, (rgb & ~(0xff<<shift)) | clamp(value)<<shift);
 	}
 
 	/**
@@ -36,6 +104,7 @@ public class Pixel {
 	 * @return The red value of the Pixel
 	 */
 	public int getRed() {
+		if (picture!=null) return (picture.getRGB(x, y)>>16)&0xff;
 		return red;
 	}
 
@@ -44,7 +113,8 @@ public class Pixel {
 	 * @param red The new red value of the Pixel, from 0-255
 	 */
 	public void setRed(int red) {
-		this.red = red;
+		if (picture!=null) setChannel(16, red);
+		else this.red = red;
 	}
 
 	/**
@@ -52,6 +122,7 @@ public class Pixel {
 	 * @return The green value of the Pixel
 	 */
 	public int getGreen() {
+		if (picture!=null) return (picture.getRGB(x, y)>>8)&0xff;
 		return green;
 	}
 
@@ -60,7 +131,8 @@ public class Pixel {
 	 * @param green The new green value of the Pixel, from 0-255
 	 */
 	public void setGreen(int green) {
-		this.green = green;
+		if (picture!=null) setChannel(8, green);
+		else this.green = green;
 	}
 
 	/**
@@ -68,6 +140,7 @@ public class Pixel {
 	 * @return The blue value of the Pixel
 	 */
 	public int getBlue() {
+		if (picture!=null) return (picture.getRGB(x, y)>>0)&0xff;
 		return blue;
 	}
 
@@ -76,7 +149,8 @@ public class Pixel {
 	 * @param blue The new blue value of the Pixel, from 0-255
 	 */
 	public void setBlue(int blue) {
-		this.blue = blue;
+		if (picture!=null) setChannel(0, blue);
+		else this.blue = blue;
 	}
 
 	/**
@@ -84,7 +158,7 @@ public class Pixel {
 	 * @return The {@link Color} of the Pixel
 	 */
 	public Color getColor() {
-		return new Color(red, green, blue);
+		return new Color(getRed(), getGreen(), getBlue());
 	}
 
 	/**
@@ -94,6 +168,10 @@ public class Pixel {
 	 * @param blue The new blue value of the Pixel, from 0-255
 	 */
 	public void setColor(int red, int green, int blue) {
+		if (picture!=null) {
+			picture.setRGB(x, y, pack(red, green, blue));
+			return;
+		}
 		this.red   = red;
 		this.green = green;
 		this.blue  = blue;
@@ -104,9 +182,7 @@ public class Pixel {
 	 * @param color The new {@link Color} of the Pixel
 	 */
 	public void setColor(Color color) {
-		this.red   = color.getRed();
-		this.green = color.getGreen();
-		this.blue  = color.getBlue();
+		setColor(color.getRed(), color.getGreen(), color.getBlue());
 	}
 
 	/**
@@ -115,7 +191,7 @@ public class Pixel {
 	 */
 	@Override
 	public String toString() {
-		return "{Red: "+red+", Green: "+green+", Blue: "+blue+"}";
+		return "{Red: "+getRed()+", Green: "+getGreen()+", Blue: "+getBlue()+"}";
 	}
 
 	/**
@@ -127,7 +203,7 @@ public class Pixel {
 	public boolean equals(Object other) {
 		if (!(other instanceof Pixel)) return false;
 		Pixel p = (Pixel)other;
-		return p.red==red && p.green==green && p.blue==blue;
+		return p.getRed()==getRed() && p.getGreen()==getGreen() && p.getBlue()==getBlue();
 	}
 
 	/**
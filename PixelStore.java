@@ -0,0 +1,109 @@
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The storage behind a {@link Picture}: a width x height grid of packed 0xRRGGBB ints.
+ * Subclasses decide where the ints actually live (row bands on the heap, tiles on disk, etc.)
+ */
+abstract class PixelStore {
+
+    /** The width of the stored image, in pixels */
+    final int width;
+
+    /** The height of the stored image, in pixels */
+    final int height;
+
+    PixelStore(int width, int height) {
+        if (width<=0 || height<=0) throw new RuntimeException("Can't have an empty image!");
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Gets the packed color at a location. Coordinates are not bounds-checked
+     * @param x The x location
+     * @param y The y location
+     * @return The packed 0xRRGGBB color
+     */
+    abstract int get(int x, int y);
+
+    /**
+     * Sets the packed color at a location. Coordinates are not bounds-checked
+     * @param x The x location
+     * @param y The y location
+     * @param rgb The packed 0xRRGGBB color
+     */
+    abstract void set(int x, int y, int rgb);
+
+    /**
+     * Creates a copy of this store. Implementations should share as much as they can and
+     * only copy the parts either side later writes to
+     * @return A store with the same contents that is independent of this one
+     */
+    abstract PixelStore snapshot();
+
+    /**
+     * Creates an all-black store of the same kind as this one, to hold the result of a filter
+     * @param width The width of the new store
+     * @param height The height of the new store
+     * @return The new store
+     */
+    PixelStore blank(int width, int height) {
+        return new BandedPixelStore(width, height);
+    }
+
+    /**
+     * Whether rows in different {@link BandedPixelStore#BAND_HEIGHT} bands can be read and
+     * written from several threads at once, as {@link RowBands} does
+     * @return true unless the store has to be used from one thread at a time
+     */
+    boolean concurrent() {
+        return true;
+    }
+
+    /**
+     * Makes sure any changes are stored durably. Only stores backed by a file have anything to do
+     */
+    void flush() {
+    }
+
+    /**
+     * Copies part of a row into an array
+     * @param y The row to read
+     * @param x The first column to read
+     * @param w The number of columns to read
+     * @param dst The array to copy into
+     * @param off The index in dst of the first column
+     */
+    void getRow(int y, int x, int w, int[] dst, int off) {
+        for (int i = 0; i<w; i++) dst[off+i] = get(x+i, y);
+    }
+
+    /**
+     * Copies an array into part of a row
+     * @param y The row to write
+     * @param x The first column to write
+     * @param w The number of columns to write
+     * @param src The array to copy from
+     * @param off The index in src of the first column
+     */
+    void setRow(int y, int x, int w, int[] src, int off) {
+        for (int i = 0; i<w; i++) set(x+i, y, src[off+i]);
+    }
+
+    /**
+     * Replaces every color in a rectangle with op applied to it
+     * @param op The point operation, from packed color to packed color
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     */
+    void apply(IntUnaryOperator op, int x, int y, int w, int h) {
+        int[] row = new int[w];
+        for (int r = y; r<y+h; r++) {
+            getRow(r, x, w, row, 0);
+            for (int i = 0; i<w; i++) row[i] = op.applyAsInt(row[i]);
+            setRow(r, x, w, row, 0);
+        }
+    }
+}
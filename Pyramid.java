@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A mipmap pyramid of a store: level 0 is the store itself and each level after it is half
+ * the size of the one before, down to the first level that fits in a single tile. Levels
+ * are built one at a time, each from the one before, so a viewer can start with the levels
+ * that are ready and switch to coarser ones as they arrive. {@link Picture#mipmaps()} builds
+ * one all the way down to a single pixel.
+ *
+ * Stores that can't be used from several threads ({@link PixelStore#concurrent()}) are only
+ * read while holding their lock, through {@link #readRow}, so a builder thread and a render
+ * thread can share them.
+ */
+final class Pyramid {
+
+    private final AtomicReferenceArray<PixelStore> levels;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a pyramid with only level 0 ready
+     * @param base The full-size store. It must not change while the pyramid is in use
+     * @param tileSize Levels stop once one fits in a tileSize x tileSize tile
+     */
+    Pyramid(PixelStore base, int tileSize) {
+        int count = 1;
+        for (int w = base.width, h = base.height; w>tileSize || h>tileSize; w = (w+1)/2, h = (h+1)/2) count++;
+        levels = new AtomicReferenceArray<>(count);
+        levels.set(0, base);
+    }
+
+    /**
+     * Gets the number of levels the pyramid will have once it is built
+     * @return The number of levels
+     */
+    int size() {
+        return levels.length();
+    }
+
+    /**
+     * Gets a level
+     * @param level The level, 0 for full size
+     * @return The level's store, or null if it hasn't been built yet
+     */
+    PixelStore level(int level) {
+        return levels.get(level);
+    }
+
+    /**
+     * Builds the missing levels, finest first. Returns early if {@link #cancel()} is called
+     * @param onLevel Run after each level is ready
+     */
+    void build(Runnable onLevel) {
+        for (int l = 1; l<levels.length() && !cancelled; l++) {
+            PixelStore level = halve(levels.get(l-1), () -> cancelled);
+            if (level==null) return;
+            levels.set(l, level);
+            onLevel.run();
+        }
+    }
+
+    /** Stops a build that is running */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Halves a store each way, averaging each 2x2 block (or the part of it inside the store,
+     * at an odd right or bottom edge). The channels of a pixel are added together in one long,
+     * and bands of rows run in parallel
+     * @param src The store to halve. It is not changed
+     * @param cancelled Checked before each row; once it is true, halving stops
+     * @return The halved store, or null if it was cancelled
+     */
+    static PixelStore halve(PixelStore src, BooleanSupplier cancelled) {
+        int width = (src.width+1)/2;
+        int height = (src.height+1)/2;
+        PixelStore dst = src.blank(width, height);
+        RowBands.run(height, 1, (y0, y1) -> {
+            int[] top = new int[src.width];
+            int[] bottom = new int[src.width];
+            int[] out = new int[width];
+            for (int y = y0; y<y1; y++) {
+                if (cancelled.getAsBoolean()) return;
+                readRow(src, 2*y, 0, src.width, top, 0);
+                boolean pair = 2*y+1<src.height;
+                if (pair) readRow(src, 2*y+1, 0, src.width, bottom, 0);
+                for (int x = 0; x<width; x++) {
+                    int a = top[2*x];
+                    int b = 2*x+1<src.width ? top[2*x+1] : a;
+                    int c = pair ? bottom[2*x] : a;
+                    int d = pair ? (2*x+1<src.width ? bottom[2*x+1] : c) : b;
+                    // add the channels in parallel, with room for the carries between them
+                    long sum = spread(a)+spread(b)+spread(c)+spread(d)+spread(0x020202);
+                    out[x] = (int)(sum>>2 & 0xff | sum>>4 & 0xff00 | sum>>6 & 0xff0000);
+                }
+                // nobody else sees dst until it is finished
+                dst.setRow(y, 0, width, out, 0);
+            }
+        }, src, dst);
+        return cancelled.getAsBoolean() ? null : dst;
+    }
+
+    /** Moves a packed color's channels 10 bits apart, so four can be added without overflow */
+    private static long spread(int rgb) {
+        return (rgb & 0xffL) | (rgb & 0xff00L)<<2 | (rgb & 0xff0000L)<<4;
+    }
+
+    /**
+     * Reads part of a row from a store, holding its lock if it can't be used concurrently
+     * @see PixelStore#getRow(int, int, int, int[], int)
+     */
+    static void readRow(PixelStore store, int y, int x, int w, int[] dst, int off) {
+        if (store.concurrent()) {
+            store.getRow(y, x, w, dst, off);
+            return;
+        }
+        synchronized (store) {
+            store.getRow(y, x, w, dst, off);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Palette quantization, behind {@link Picture#quantize(int, boolean)}.
+ *
+ * Palettes are built by median cut. Colors are counted at 5 bits a channel, 32x32x32 cells,
+ * along with the sum of the full colors in each cell, in one parallel pass. Starting from one
+ * box around every color present, the box with the most pixels is split across its longest
+ * side at the median pixel, until there are enough boxes; each box's average color goes in
+ * the palette.
+ *
+ * Mapping a pixel to its nearest palette color goes through an inverse colormap: the palette
+ * index nearest to the center of each of the 32x32x32 cells, worked out once per palette (and
+ * kept for the next picture with the same palette), so each pixel is one table lookup.
+ *
+ * Floyd-Steinberg dithering pushes each pixel's error onto its right and lower neighbours, so
+ * a pixel can only be done once the row above has got one pixel past it. Rows are cut into
+ * chunks, and chunk j of row y runs in wave j+2y: by then chunk j-1 of its row and chunk j+1 of
+ * the row above have run in earlier waves. The chunks of each wave run in parallel, and since
+ * every pixel sees the same errors in the same order, the result doesn't depend on the
+ * number of threads.
+ */
+final class Quantizer {
+
+    /** The most colors a palette may have, so palette indexes fit in a byte */
+    static final int MAX_COLORS = 256;
+
+    /** Bits kept of each channel in the color cells */
+    private static final int BITS = 5;
+    private static final int SIDE = 1<<BITS;
+    private static final int CELLS = SIDE*SIDE*SIDE;
+
+    /** The width of the chunks a dithered row is cut into */
+    private static final int CHUNK = 256;
+
+    private static final int MAX_MAPS = 16;
+    private static final Map<IntBuffer, byte[]> maps = new ConcurrentHashMap<>();
+
+    private Quantizer() {
+    }
+
+    /**
+     * Builds a palette for a store by median cut
+     * @param src The store
+     * @param colors The most colors the palette may have, 1 to {@link #MAX_COLORS}
+     * @return The palette's packed colors; fewer than asked for if the store has fewer colors
+     */
+    static int[] palette(PixelStore src, int colors) {
+        if (colors<1 || colors>MAX_COLORS) throw new RuntimeException("A palette must have 1 to "+MAX_COLORS+" colors");
+        // per cell: the count, then the sums of red, green and blue
+        long[] cells = new long[4*CELLS];
+        int width = src.width;
+        RowBands.run(src.height, 4*BandedPixelStore.BAND_HEIGHT, (y0, y1) -> {
+            long[] local = new long[4*CELLS];
+            int[] row = new int[width];
+            for (int y = y0; y<y1; y++) {
+                src.getRow(y, 0, width, row, 0);
+                for (int rgb : row) {
+                    int i = 4*cell(rgb);
+                    local[i]++;
+                    local[i+1] += rgb>>16 & 0xff;
+                    local[i+2] += rgb>>8 & 0xff;
+                    local[i+3] += rgb & 0xff;
+                }
+            }
+            synchronized (cells) {
+                for (int i = 0; i<cells.length; i++) cells[i] += local[i];
+            }
+        }, src);
+
+        List<int[]> boxes = new ArrayList<>();
+        int[] all = {0, SIDE-1, 0, SIDE-1, 0, SIDE-1, 0};
+        shrink(cells, all);
+        boxes.add(all);
+        while (boxes.size()<colors) {
+            int[] biggest = null;
+            for (int[] box : boxes) {
+                boolean splittable = box[0]<box[1] || box[2]<box[3] || box[4]<box[5];
+                if (splittable && (biggest==null || box[6]>biggest[6])) biggest = box;
+            }
+            if (biggest==null) break;
+            boxes.add(split(cells, biggest));
+        }
+
+        int[] palette = new int[boxes.size()];
+        for (int p = 0; p<palette.length; p++) palette[p] = average(cells, boxes.get(p));
+        return palette;
+    }
+
+    /** Gets the cell of a packed color: its top 5 bits of red, green and blue */
+    private static int cell(int rgb) {
+        return (rgb>>>9 & 0x7c00) | (rgb>>>6 & 0x3e0) | (rgb>>>3 & 0x1f);
+    }
+
+    /**
+     * Shrinks a box to the cells in it that have pixels, and counts them.
+     * A box is {red from, red to, green from, green to, blue from, blue to, pixels}
+     */
+    private static void shrink(long[] cells, int[] box) {
+        int[] lo = {SIDE, SIDE, SIDE};
+        int[] hi = {-1, -1, -1};
+        long count = 0;
+        for (int r = box[0]; r<=box[1]; r++) {
+            for (int g = box[2]; g<=box[3]; g++) {
+                for (int b = box[4]; b<=box[5]; b++) {
+                    long n = cells[4*(r<<10 | g<<5 | b)];
+                    if (n==0) continue;
+                    count += n;
+                    lo[0] = Math.min(lo[0], r);
+                    hi[0] = Math.max(hi[0], r);
+                    lo[1] = Math.min(lo[1], g);
+                    hi[1] = Math.max(hi[1], g);
+                    lo[2] = Math.min(lo[2], b);
+                    hi[2] = Math.max(hi[2], b);
+                }
+            }
+        }
+        for (int c = 0; c<3; c++) {
+            box[2*c] = lo[c];
+            box[2*c+1] = hi[c];
+        }
+        // a count past an int's range only matters for choosing the biggest box
+        box[6] = (int)Math.min(Integer.MAX_VALUE, count);
+    }
+
+    /** Splits a box across its longest side at the median pixel, returning the upper half */
+    private static int[] split(long[] cells, int[] box) {
+        int axis = 0;
+        for (int c = 1; c<3; c++) if (box[2*c+1]-box[2*c]>box[2*axis+1]-box[2*axis]) axis = c;
+        int from = box[2*axis];
+        int to = box[2*axis+1];
+
+        // the pixels in each slice of the box across that side
+        long[] slices = new long[to-from+1];
+        long total = 0;
+        for (int r = box[0]; r<=box[1]; r++) {
+            for (int g = box[2]; g<=box[3]; g++) {
+                for (int b = box[4]; b<=box[5]; b++) {
+                    long n = cells[4*(r<<10 | g<<5 | b)];
+                    slices[(axis==0 ? r : axis==1 ? g : b)-from] += n;
+                    total += n;
+                }
+            }
+        }
+        // the last slice of the lower half: where half the pixels are, but leaving the upper half at least one slice
+        int cut = from;
+        long below = slices[0];
+        while (cut<to-1 && below*2<total) below += slices[++cut-from];
+
+        int[] upper = box.clone();
+        box[2*axis+1] = cut;
+        upper[2*axis] = cut+1;
+        shrink(cells, box);
+        shrink(cells, upper);
+        return upper;
+    }
+
+    /** Averages the full colors of the pixels in a box */
+    private static int average(long[] cells, int[] box) {
+        long n = 0, red = 0, green = 0, blue = 0;
+        for (int r = box[0]; r<=box[1]; r++) {
+            for (int g = box[2]; g<=box[3]; g++) {
+                for (int b = box[4]; b<=box[5]; b++) {
+                    int i = 4*(r<<10 | g<<5 | b);
+                    n += cells[i];
+                    red += cells[i+1];
+                    green += cells[i+2];
+                    blue += cells[i+3];
+                }
+            }
+        }
+        return (int)((red+n/2)/n)<<16 | (int)((green+n/2)/n)<<8 | (int)((blue+n/2)/n);
+    }
+
+    /**
+     * Gets the inverse colormap of a palette, working it out the first time
+     * @param palette The palette
+     * @return The index of the palette color nearest each cell's center, by cell
+     */
+    private static byte[] inverse(int[] palette) {
+        IntBuffer key = IntBuffer.wrap(palette.clone());
+        byte[] map = maps.get(key);
+        if (map!=null) return map;
+
+        byte[] nearest = new byte[CELLS];
+        IntStream.range(0, CELLS).parallel().forEach(cell -> {
+            int r = (cell>>10)<<3 | 4;
+            int g = (cell>>5 & 0x1f)<<3 | 4;
+            int b = (cell & 0x1f)<<3 | 4;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int p = 0; p<palette.length; p++) {
+                int dr = (palette[p]>>16 & 0xff)-r;
+                int dg = (palette[p]>>8 & 0xff)-g;
+                int db = (palette[p] & 0xff)-b;
+                int distance = dr*dr+dg*dg+db*db;
+                if (distance<bestDistance) {
+                    bestDistance = distance;
+                    best = p;
+                }
+            }
+            nearest[cell] = (byte)best;
+        });
+
+        if (maps.size()>=MAX_MAPS) maps.clear();
+        maps.put(key, nearest);
+        return nearest;
+    }
+
+    /**
+     * Maps every pixel of a store to a palette color
+     * @param src The store. It is not changed
+     * @param palette The palette, 1 to {@link #MAX_COLORS} packed colors
+     * @param dither Whether to spread each pixel's error onto its neighbours (Floyd-Steinberg)
+     * @return A new store holding the result
+     */
+    static PixelStore remap(PixelStore src, int[] palette, boolean dither) {
+        if (palette.length<1 || palette.length>MAX_COLORS) throw new RuntimeException("A palette must have 1 to "+MAX_COLORS+" colors");
+        int[] colors = new int[palette.length];
+        for (int p = 0; p<palette.length; p++) colors[p] = palette[p] & 0xffffff;
+        byte[] nearest = inverse(colors);
+        PixelStore dst = src.blank(src.width, src.height);
+        if (dither) {
+            dither(src, dst, colors, nearest);
+        } else {
+            int width = src.width;
+            RowBands.run(src.height, 1, (y0, y1) -> {
+                int[] row = new int[width];
+                for (int y = y0; y<y1; y++) {
+                    src.getRow(y, 0, width, row, 0);
+                    for (int x = 0; x<width; x++) row[x] = colors[nearest[cell(row[x])] & 0xff];
+                    dst.setRow(y, 0, width, row, 0);
+                }
+            }, src, dst);
+        }
+        return dst;
+    }
+
+    private static void dither(PixelStore src, PixelStore dst, int[] colors, byte[] nearest) {
+        int width = src.width;
+        int height = src.height;
+        int chunks = (width+CHUNK-1)/CHUNK;
+        // the rows being worked on at once, each with the errors pushed down onto it in
+        // sixteenths, three channels per pixel plus one pixel of padding either side
+        int ring = chunks/2+3;
+        int[][] below = new int[ring][3*(width+2)];
+        // the error each row carries into its next chunk, in sixteenths
+        int[][] carry = new int[ring][3];
+        boolean parallel = src.concurrent() && dst.concurrent();
+        for (int wave = 0; wave<chunks+2*(height-1); wave++) {
+            int w = wave;
+            // chunk j of row y runs in wave j+2y
+            int first = Math.max(0, (w-chunks+2)/2);
+            int last = Math.min(height-1, w/2);
+            IntStream rows = IntStream.rangeClosed(first, last);
+            if (parallel && last>first) rows = rows.parallel();
+            rows.forEach(y -> {
+                int j = w-2*y;
+                if (j<0 || j>=chunks) return;
+                int x0 = j*CHUNK;
+                int x1 = Math.min(width, x0+CHUNK);
+                int[] in = below[y%ring];
+                int[] out = below[(y+1)%ring];
+                int[] right = carry[y%ring];
+                if (j==0) {
+                    right[0] = right[1] = right[2] = 0;
+                }
+                int[] row = new int[x1-x0];
+                src.getRow(y, x0, x1-x0, row, 0);
+                for (int x = x0; x<x1; x++) {
+                    int rgb = row[x-x0];
+                    int i = 3*(x+1);
+                    int r = clamp(((rgb>>16 & 0xff)*16+in[i]+right[0]+8)>>4);
+                    int g = clamp(((rgb>>8 & 0xff)*16+in[i+1]+right[1]+8)>>4);
+                    int b = clamp(((rgb & 0xff)*16+in[i+2]+right[2]+8)>>4);
+                    in[i] = in[i+1] = in[i+2] = 0;
+                    int chosen = colors[nearest[cell(r<<16 | g<<8 | b)] & 0xff];
+                    row[x-x0] = chosen;
+                    int er = r-(chosen>>16 & 0xff);
+                    int eg = g-(chosen>>8 & 0xff);
+                    int eb = b-(chosen & 0xff);
+                    right[0] = 7*er;
+                    right[1] = 7*eg;
+                    right[2] = 7*eb;
+                    out[i-3] += 3*er;
+                    out[i-2] += 3*eg;
+                    out[i-1] += 3*eb;
+                    out[i] += 5*er;
+                    out[i+1] += 5*eg;
+                    out[i+2] += 5*eb;
+                    out[i+3] += er;
+                    out[i+4] += eg;
+                    out[i+5] += eb;
+                }
+                if (j==0) in[0] = in[1] = in[2] = 0;
+                if (x1==width) in[3*(width+1)] = in[3*(width+1)+1] = in[3*(width+1)+2] = 0;
+                dst.setRow(y, x0, x1-x0, row, 0);
+            });
+        }
+    }
+
+    private static int clamp(int c) {
+        return c<0 ? 0 : c>255 ? 255 : c;
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Runs a filter on part of a picture, behind {@link PictureFilter#apply(Picture, Mask)} and
+ * {@link Picture#applyMasked(UnaryOperator, Mask)}, so the cost follows the size of the part
+ * rather than the size of the picture.
+ *
+ * A filter that looks at most halo pixels away from each pixel gives the same results inside
+ * a rectangle whether it runs on the whole picture or on the rectangle plus a halo around it,
+ * so only that crop is copied out and filtered, and only the rectangle is copied back. For a
+ * {@link Mask}, each band of rows gets its own crop around the columns its set pixels span,
+ * bands with nothing set are skipped, and the bands are filtered in parallel; only set pixels
+ * are copied back. Filters that need the whole picture ({@link PictureFilter#GLOBAL}) run on
+ * a snapshot of all of it, and only the selected pixels are kept.
+ */
+final class Regions {
+
+    /** The result of filtering a crop, and where the crop's corner was in the picture */
+    private static final class Crop {
+        final int left;
+        final int top;
+        final PixelStore result;
+
+        Crop(int left, int top, PixelStore result) {
+            this.left = left;
+            this.top = top;
+            this.result = result;
+        }
+    }
+
+    private Regions() {
+    }
+
+    /**
+     * Filters a rectangle of a store, leaving the pixels outside it alone
+     * @param store The store to change
+     * @param filter The filter, which may change the Picture it is given or return a new one of the same size
+     * @param halo How far the filter looks from each pixel, or {@link PictureFilter#GLOBAL}
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle. Parts of the rectangle outside the store are ignored
+     */
+    static void rectangle(PixelStore store, UnaryOperator<Picture> filter, int halo, int x, int y, int w, int h) {
+        rectangle(store, store, filter, halo, x, y, w, h);
+    }
+
+    /**
+     * Filters a rectangle of one store into the same rectangle of another, so the rectangles
+     * of a picture can be filtered one after another without seeing each other's results
+     * @param src The store to read
+     * @param dst The store to write, the same size as src (or src itself)
+     * @param filter The filter, which may change the Picture it is given or return a new one of the same size
+     * @param halo How far the filter looks from each pixel, or {@link PictureFilter#GLOBAL}
+     * @param x The left edge of the rectangle
+     * @param y The top edge of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle. Parts of the rectangle outside the stores are ignored
+     */
+    static void rectangle(PixelStore src, PixelStore dst, UnaryOperator<Picture> filter, int halo, int x, int y, int w, int h) {
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = (int)Math.min(src.width, (long)x+w);
+        int y1 = (int)Math.min(src.height, (long)y+h);
+        if (x0>=x1 || y0>=y1) return;
+        Crop crop = filter(src, filter, halo, x0, y0, x1, y1);
+        int[] row = new int[x1-x0];
+        for (int r = y0; r<y1; r++) {
+            crop.result.getRow(r-crop.top, x0-crop.left, x1-x0, row, 0);
+            dst.setRow(r, x0, x1-x0, row, 0);
+        }
+    }
+
+    /**
+     * Filters the pixels of a store that are set in a mask, leaving the others alone
+     * @param store The store to change
+     * @param filter The filter, which may change the Picture it is given or return a new one of the same size
+     * @param halo How far the filter looks from each pixel, or {@link PictureFilter#GLOBAL}
+     * @param mask The pixels to change; the same size as the store
+     */
+    static void masked(PixelStore store, UnaryOperator<Picture> filter, int halo, Mask mask) {
+        int rows = BandedPixelStore.BAND_HEIGHT;
+        // each crop carries a halo above and below, so make bands a few halos tall
+        while (rows<4*halo) rows += BandedPixelStore.BAND_HEIGHT;
+        int step = rows;
+        int bands = (store.height+step-1)/step;
+        int[][] spans = new int[bands][];
+        for (int b = 0; b<bands; b++) spans[b] = mask.columns(b*step, Math.min(store.height, (b+1)*step));
+
+        Crop[] crops = new Crop[bands];
+        if (halo<0) {
+            Crop whole = filter(store, filter, halo, 0, 0, store.width, store.height);
+            for (int b = 0; b<bands; b++) crops[b] = whole;
+        } else {
+            // every crop is read before any result is written back, so bands can't see each other's results
+            IntStream covered = IntStream.range(0, bands).filter(b -> spans[b]!=null);
+            if (store.concurrent()) covered = covered.parallel();
+            covered.forEach(b -> crops[b] = filter(store, filter, halo,
+                    spans[b][0], b*step, spans[b][1], Math.min(store.height, (b+1)*step)));
+        }
+
+        for (int b = 0; b<bands; b++) {
+            if (spans[b]==null) continue;
+            int x0 = spans[b][0];
+            int w = spans[b][1]-x0;
+            int[] row = new int[w];
+            int[] filtered = new int[w];
+            for (int y = b*step; y<Math.min(store.height, (b+1)*step); y++) {
+                if (mask.rowEmpty(y)) continue;
+                store.getRow(y, x0, w, row, 0);
+                crops[b].result.getRow(y-crops[b].top, x0-crops[b].left, w, filtered, 0);
+                for (int i = x0>>>6; i<=(x0+w-1)>>>6; i++) {
+                    long bits = mask.words[y*mask.stride+i];
+                    while (bits!=0) {
+                        int x = i<<6 | Long.numberOfTrailingZeros(bits);
+                        row[x-x0] = filtered[x-x0];
+                        bits &= bits-1;
+                    }
+                }
+                store.setRow(y, x0, w, row, 0);
+            }
+        }
+    }
+
+    /** Copies out the rectangle from (x0, y0) to (x1, y1) plus its halo and filters it */
+    private static Crop filter(PixelStore store, UnaryOperator<Picture> filter, int halo, int x0, int y0, int x1, int y1) {
+        int left = halo<0 ? 0 : Math.max(0, x0-halo);
+        int top = halo<0 ? 0 : Math.max(0, y0-halo);
+        int right = halo<0 ? store.width : Math.min(store.width, x1+halo);
+        int bottom = halo<0 ? store.height : Math.min(store.height, y1+halo);
+        PixelStore input;
+        if (left==0 && top==0 && right==store.width && bottom==store.height) {
+            input = store.snapshot();
+        } else {
+            input = store.blank(right-left, bottom-top);
+            int[] row = new int[right-left];
+            for (int y = top; y<bottom; y++) {
+                store.getRow(y, left, right-left, row, 0);
+                input.setRow(y-top, 0, right-left, row, 0);
+            }
+        }
+        Picture result = filter.apply(new Picture(input));
+        if (result.getWidth()!=right-left || result.getHeight()!=bottom-top) {
+            throw new RuntimeException("A filter on part of a Picture can't change its size");
+        }
+        return new Crop(left, top, result.store());
+    }
+}
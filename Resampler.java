@@ -0,0 +1,208 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resizing behind {@link Picture#resize(int, int, ResizeFilter)}.
+ *
+ * Output pixel j of a line sits at (j+0.5)*src/dst-0.5 in source pixels, and its value is
+ * the weighted sum of the source pixels the filter reaches from there. Shrinking stretches
+ * the filter by the shrink factor, so it reaches every source pixel instead of skipping some;
+ * growing leaves it as it is. The weights for each output column (and row) depend only on the
+ * two lengths and the filter, so they are worked out once into a table, kept for the next
+ * resize between the same sizes, and made 14-bit fixed point adding up to exactly 1, with taps
+ * past the edges folded onto the edge pixel.
+ *
+ * The filter is separable, so each band of output rows resizes source rows across, keeping 6
+ * extra bits of each channel, then adds those down the columns. The resized rows go through
+ * a ring as tall as the longest column of taps, since successive output rows read overlapping
+ * runs of source rows, so a band holds the same few rows however tall it is. Bands run in
+ * parallel.
+ */
+final class Resampler {
+
+    /** The weights for resizing one line length to another */
+    private static final class Weights {
+        /** The first source pixel each output pixel reads */
+        final int[] first;
+        /** How many source pixels each output pixel reads */
+        final int[] counts;
+        /** Where each output pixel's weights start in {@link #weights} */
+        final int[] offsets;
+        /** The weights, counts[0] of them for the first output pixel, then the next's, and so on */
+        final int[] weights;
+
+        Weights(int[] first, int[] counts, int[] offsets, int[] weights) {
+            this.first = first;
+            this.counts = counts;
+            this.offsets = offsets;
+            this.weights = weights;
+        }
+    }
+
+    /** Fixed point bits of the weights */
+    private static final int SHIFT = 14;
+    private static final int ONE = 1<<SHIFT;
+
+    /** Extra bits of each channel kept between the passes */
+    private static final int EXTRA = 6;
+    private static final int ACROSS_SHIFT = SHIFT-EXTRA;
+    private static final int DOWN_SHIFT = SHIFT+EXTRA;
+
+    private static final int MAX_TABLES = 64;
+    private static final Map<String, Weights> tables = new ConcurrentHashMap<>();
+
+    private Resampler() {
+    }
+
+    /**
+     * Resizes a store
+     * @param src The store to resize. It is not changed
+     * @param width The width of the result
+     * @param height The height of the result
+     * @param filter The filter to weight source pixels with
+     * @return A new store holding the result
+     */
+    static PixelStore resize(PixelStore src, int width, int height, ResizeFilter filter) {
+        if (width<=0 || height<=0) throw new RuntimeException("Can't have an empty image!");
+        if (filter==null) throw new RuntimeException("Need a filter to resize with");
+        Weights across = weights(src.width, width, filter);
+        Weights down = weights(src.height, height, filter);
+        PixelStore dst = src.blank(width, height);
+        RowBands.run(height, 1, (y0, y1) -> band(src, dst, y0, y1, across, down), src, dst);
+        return dst;
+    }
+
+    /**
+     * Gets the weights for resizing one line length to another, working them out the first time
+     * @param n The source length
+     * @param m The output length
+     * @param filter The filter
+     * @return The weights
+     */
+    private static Weights weights(int n, int m, ResizeFilter filter) {
+        String key = filter+":"+n+":"+m;
+        Weights table = tables.get(key);
+        if (table!=null) return table;
+
+        double scale = Math.max(1, (double)n/m);
+        double reach = filter.support*scale;
+        int[] first = new int[m];
+        int[] counts = new int[m];
+        int[][] taps = new int[m][];
+        int total = 0;
+        for (int j = 0; j<m; j++) {
+            double center = (j+0.5)*n/m-0.5;
+            int lo = Math.max(0, (int)Math.ceil(center-reach));
+            int hi = Math.min(n-1, (int)Math.floor(center+reach));
+            double[] w = new double[hi-lo+1];
+            double sum = 0;
+            for (int i = (int)Math.ceil(center-reach); i<=(int)Math.floor(center+reach); i++) {
+                double weight = filter.weight((i-center)/scale);
+                w[Math.min(hi, Math.max(lo, i))-lo] += weight;
+                sum += weight;
+            }
+            int[] fixed = new int[w.length];
+            int fixedSum = 0;
+            int biggest = 0;
+            for (int k = 0; k<w.length; k++) {
+                fixed[k] = (int)Math.round(w[k]/sum*ONE);
+                fixedSum += fixed[k];
+                if (fixed[k]>fixed[biggest]) biggest = k;
+            }
+            // put the rounding error on the biggest weight so a flat image stays exactly flat
+            fixed[biggest] += ONE-fixedSum;
+
+            // drop the zero weights at the ends, where the filter only just reaches
+            int start = 0;
+            int end = fixed.length;
+            while (fixed[start]==0) start++;
+            while (fixed[end-1]==0) end--;
+            first[j] = lo+start;
+            counts[j] = end-start;
+            taps[j] = Arrays.copyOfRange(fixed, start, end);
+            total += counts[j];
+        }
+        int[] offsets = new int[m];
+        int[] weights = new int[total];
+        for (int j = 0, k = 0; j<m; k += counts[j], j++) {
+            offsets[j] = k;
+            System.arraycopy(taps[j], 0, weights, k, counts[j]);
+        }
+        table = new Weights(first, counts, offsets, weights);
+
+        if (tables.size()>=MAX_TABLES) tables.clear();
+        tables.put(key, table);
+        return table;
+    }
+
+    /**
+     * Resizes output rows y0 to y1. Source rows are resized across as they are first needed
+     * into a ring big enough for any one output row's taps, so an output row's source rows are
+     * all in the ring together, then each output row adds its taps down
+     */
+    private static void band(PixelStore src, PixelStore dst, int y0, int y1, Weights across, Weights down) {
+        int width = dst.width;
+        int size = 0;
+        for (int y = y0; y<y1; y++) size = Math.max(size, down.counts[y]);
+
+        // source rows resized across, three channels per output column, at slot row%size
+        int stride = 3*width;
+        int[] rows = new int[size*stride];
+        int[] held = new int[size];
+        Arrays.fill(held, -1);
+        int[] row = new int[src.width];
+
+        int[] sums = new int[stride];
+        int[] out = new int[width];
+        for (int y = y0; y<y1; y++) {
+            Arrays.fill(sums, 1<<(DOWN_SHIFT-1));
+            for (int t = 0; t<down.counts[y]; t++) {
+                int sy = down.first[y]+t;
+                int slot = sy%size;
+                if (held[slot]!=sy) {
+                    src.getRow(sy, 0, src.width, row, 0);
+                    across(row, rows, slot*stride, across);
+                    held[slot] = sy;
+                }
+                int weight = down.weights[down.offsets[y]+t];
+                int base = slot*stride;
+                for (int i = 0; i<stride; i++) sums[i] += weight*rows[base+i];
+            }
+            for (int x = 0; x<width; x++) {
+                int r = clamp(sums[3*x]>>DOWN_SHIFT);
+                int g = clamp(sums[3*x+1]>>DOWN_SHIFT);
+                int b = clamp(sums[3*x+2]>>DOWN_SHIFT);
+                out[x] = r<<16 | g<<8 | b;
+            }
+            dst.setRow(y, 0, width, out, 0);
+        }
+    }
+
+    /** Resizes one row across into three channels per output column, with {@link #EXTRA} extra bits */
+    private static void across(int[] row, int[] rows, int off, Weights across) {
+        int[] first = across.first;
+        int[] counts = across.counts;
+        int[] weights = across.weights;
+        for (int j = 0, k = 0; j<first.length; j++) {
+            int r = 1<<(ACROSS_SHIFT-1);
+            int g = r;
+            int b = r;
+            for (int i = first[j]; i<first[j]+counts[j]; i++, k++) {
+                int rgb = row[i];
+                int w = weights[k];
+                r += w*(rgb>>16 & 0xff);
+                g += w*(rgb>>8 & 0xff);
+                b += w*(rgb & 0xff);
+            }
+            rows[off+3*j] = r>>ACROSS_SHIFT;
+            rows[off+3*j+1] = g>>ACROSS_SHIFT;
+            rows[off+3*j+2] = b>>ACROSS_SHIFT;
+        }
+    }
+
+    /** Clamps a channel that a filter with negative weights may have pushed past 0 to 255 */
+    private static int clamp(int c) {
+        return c<0 ? 0 : c>255 ? 255 : c;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.stream.IntStream;
+
+/**
+ * Runs work on the rows of a picture as bands of rows (or tiles cut from them) processed at
+ * the same time on the common fork/join pool. Bands start on {@link BandedPixelStore#BAND_HEIGHT}
+ * boundaries, so two bands never write to the same band of a {@link BandedPixelStore}, and
+ * tiles in the same band write to different parts of its rows.
+ *
+ * The stores a task writes to should be unshared (fresh from {@link PixelStore#blank}, say):
+ * the first write to a store that shares its band table with a snapshot copies the table,
+ * and that must not happen from two threads at once.
+ */
+final class RowBands {
+
+    /** Work on a range of rows */
+    interface Task {
+        /**
+         * Processes rows y0 (inclusive) to y1 (exclusive)
+         * @param y0 The first row
+         * @param y1 The row after the last row
+         */
+        void run(int y0, int y1);
+    }
+
+    /** Work on a rectangle */
+    interface TileTask {
+        /**
+         * Processes the rectangle from (x0, y0) inclusive to (x1, y1) exclusive
+         * @param x0 The first column
+         * @param y0 The first row
+         * @param x1 The column after the last column
+         * @param y1 The row after the last row
+         */
+        void run(int x0, int y0, int x1, int y1);
+    }
+
+    private RowBands() {
+    }
+
+    /**
+     * Runs a task over every row, in bands of at least minRows rows. Runs on the calling
+     * thread if any of the stores can't be used concurrently or there is only one band
+     * @param height The number of rows
+     * @param minRows The fewest rows worth handing to one task, for tasks with a per-band cost
+     * @param task The work to do
+     * @param stores The stores the task reads or writes
+     */
+    static void run(int height, int minRows, Task task, PixelStore... stores) {
+        int rows = BandedPixelStore.BAND_HEIGHT;
+        while (rows<minRows) rows += BandedPixelStore.BAND_HEIGHT;
+        int step = rows;
+        int bands = (height+step-1)/step;
+
+        boolean concurrent = bands>1;
+        for (PixelStore store : stores) concurrent &= store.concurrent();
+        if (!concurrent) {
+            task.run(0, height);
+            return;
+        }
+        IntStream.range(0, bands).parallel().forEach(b -> task.run(b*step, Math.min(height, (b+1)*step)));
+    }
+
+    /**
+     * Runs a task over rows y0 to y1 on the calling thread, a chunk of at least minRows rows
+     * (rounded up to a whole number of bands) at a time. {@link #run} hands the whole picture
+     * to one task when a store can't be used concurrently, so tasks that buffer their rows
+     * go through this to keep the buffers a few bands tall whatever range they are given
+     * @param y0 The first row
+     * @param y1 The row after the last row
+     * @param minRows The fewest rows worth handing to one chunk, for tasks with a per-chunk cost
+     * @param task The work to do
+     */
+    static void chunks(int y0, int y1, int minRows, Task task) {
+        int rows = BandedPixelStore.BAND_HEIGHT;
+        while (rows<minRows) rows += BandedPixelStore.BAND_HEIGHT;
+        for (int y = y0; y<y1; y += rows) task.run(y, Math.min(y1, y+rows));
+    }
+
+    /**
+     * Runs a task over every pixel, in tiles of at least minRows rows (rounded up to a whole
+     * number of bands) by tileWidth columns, so each task's working set can stay in cache.
+     * Runs on the calling thread if any of the stores can't be used concurrently
+     * @param width The number of columns
+     * @param height The number of rows
+     * @param tileWidth The width of a tile
+     * @param minRows The fewest rows in a tile
+     * @param task The work to do
+     * @param stores The stores the task reads or writes
+     */
+    static void tiles(int width, int height, int tileWidth, int minRows, TileTask task, PixelStore... stores) {
+        int rows = BandedPixelStore.BAND_HEIGHT;
+        while (rows<minRows) rows += BandedPixelStore.BAND_HEIGHT;
+        int tileHeight = rows;
+        int across = (width+tileWidth-1)/tileWidth;
+        int tiles = across*((height+tileHeight-1)/tileHeight);
+
+        boolean concurrent = tiles>1;
+        for (PixelStore store : stores) concurrent &= store.concurrent();
+        IntStream indices = IntStream.range(0, tiles);
+        if (concurrent) indices = indices.parallel();
+        indices.forEach(t -> {
+            int x0 = t%across*tileWidth;
+            int y0 = t/across*tileHeight;
+            task.run(x0, y0, Math.min(width, x0+tileWidth), Math.min(height, y0+tileHeight));
+        });
+    }
+}
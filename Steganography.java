@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.stream.IntStream;
+
+/**
+ * Hides a stream of bytes in the low bits of a picture's pixels, behind
+ * {@link Picture#encode(InputStream, int)} and {@link Picture#decode(OutputStream, int)}.
+ *
+ * The hidden stream is an 8-byte length followed by the payload. Its bits go into the pixels
+ * in reading order, each pixel taking the next 3*bits of them: the first bits into the low
+ * bits of red, the next into green, then blue, and within each byte lowest bit first. Each
+ * pixel's bits are set with one mask and one or, so a pixel is read and written once.
+ *
+ * Because a band of {@link BandedPixelStore#BAND_HEIGHT} rows holds a whole number of bytes,
+ * every band's share of the stream is known in advance: the stream is read (or written) a
+ * few bands' worth at a time, and those bands are filled (or emptied) in parallel. The order
+ * of the bits doesn't depend on how the work is split, so any picture encoded one way can be
+ * decoded another.
+ */
+final class Steganography {
+
+    /** The bytes of the length written before the payload */
+    static final int HEADER = 8;
+
+    /** The bands handled at once, per thread */
+    private static final int BANDS_PER_THREAD = 2;
+
+    /** The most bytes of the stream to hold at once, unless one band needs more */
+    private static final int MAX_BUFFER = 1<<26;
+
+    private Steganography() {
+    }
+
+    /**
+     * Gets how many bytes of payload fit in a store
+     * @param store The store
+     * @param bits The low bits of each channel to use, 1 to 4
+     * @return The most bytes of payload that fit, after the length
+     */
+    static long capacity(PixelStore store, int bits) {
+        checkBits(bits);
+        return Math.max(0, (long)store.width*store.height*3*bits/8-HEADER);
+    }
+
+    /**
+     * Hides a payload in a store
+     * @param store The store to change
+     * @param payload The bytes to hide, read to the end but not closed
+     * @param bits The low bits of each channel to use, 1 to 4
+     * @return The number of payload bytes hidden
+     */
+    static long encode(PixelStore store, InputStream payload, int bits) {
+        long capacity = capacity(store, bits);
+        if ((long)store.width*store.height*3*bits<8L*HEADER) throw new RuntimeException("The picture is too small to hide anything in");
+        int bandBytes = bandBytes(store, bits);
+        int bands = bands(store);
+        int group = group(bandBytes);
+
+        // write a placeholder length first, on this thread, so the store owns its band table
+        // before bands are written in parallel
+        byte[] header = new byte[HEADER];
+        embed(store, bits, 0, header, 0, 8L*HEADER);
+
+        long hidden = 0;
+        boolean done = false;
+        for (int b0 = 0; b0<bands && !done; b0 += group) {
+            int b1 = Math.min(bands, b0+group);
+            long start = (long)b0*bandBytes;
+            byte[] buffer = new byte[(b1-b0)*bandBytes];
+            // the first group starts with the length, which is written last
+            int skip = (int)Math.max(0, HEADER-start);
+            int want = (int)Math.min(buffer.length-skip, capacity-hidden);
+            int got = read(payload, buffer, skip, want);
+            hidden += got;
+            done = got<want || hidden==capacity;
+            long valid = skip+got;
+            int first = b0;
+            IntStream indices = IntStream.range(b0, b1);
+            if (store.concurrent()) indices = indices.parallel();
+            indices.forEach(b -> {
+                long from = (long)(b-first)*bandBytes;
+                if (from>=valid) return;
+                embed(store, bits, b*BandedPixelStore.BAND_HEIGHT, buffer, (int)from, 8*Math.min(bandBytes, valid-from));
+            });
+        }
+        if (hidden==capacity && read(payload, new byte[1], 0, 1)>0) {
+            throw new RuntimeException("The payload is bigger than the "+capacity+" bytes that fit with "+bits+" bits per channel");
+        }
+
+        for (int i = 0; i<HEADER; i++) header[i] = (byte)(hidden>>>8*i);
+        embed(store, bits, 0, header, 0, 8L*HEADER);
+        return hidden;
+    }
+
+    /**
+     * Reads a payload hidden by {@link #encode}
+     * @param store The store to read
+     * @param payload Where to write the hidden bytes; it is not closed
+     * @param bits The low bits of each channel that were used, 1 to 4
+     * @return The number of payload bytes found
+     */
+    static long decode(PixelStore store, OutputStream payload, int bits) {
+        long capacity = capacity(store, bits);
+        if ((long)store.width*store.height*3*bits<8L*HEADER) throw new RuntimeException("The picture is too small to hide anything in");
+        int bandBytes = bandBytes(store, bits);
+        int bands = bands(store);
+        int group = group(bandBytes);
+
+        byte[] header = new byte[HEADER];
+        extract(store, bits, 0, header, 0, HEADER);
+        long length = 0;
+        for (int i = 0; i<HEADER; i++) length |= (header[i] & 0xffL)<<8*i;
+        if (length<0 || length>capacity) throw new RuntimeException("There's no payload hidden with "+bits+" bits per channel");
+
+        long end = HEADER+length;
+        for (int b0 = 0; b0<bands && (long)b0*bandBytes<end; b0 += group) {
+            int b1 = Math.min(bands, b0+group);
+            long start = (long)b0*bandBytes;
+            int size = (int)Math.min((long)(b1-b0)*bandBytes, end-start);
+            byte[] buffer = new byte[size];
+            int first = b0;
+            IntStream indices = IntStream.range(b0, b1);
+            if (store.concurrent()) indices = indices.parallel();
+            indices.forEach(b -> {
+                int from = (b-first)*bandBytes;
+                if (from>=size) return;
+                extract(store, bits, b*BandedPixelStore.BAND_HEIGHT, buffer, from, Math.min(bandBytes, size-from));
+            });
+            int skip = (int)Math.max(0, HEADER-start);
+            try {
+                payload.write(buffer, skip, size-skip);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Puts bits into the pixels from the start of a row on
+     * @param store The store to change
+     * @param bits The low bits of each channel to use
+     * @param y The first row
+     * @param data The bytes to hide
+     * @param off The first byte
+     * @param count The number of bits to hide; the other bits of the last pixel are left alone
+     */
+    private static void embed(PixelStore store, int bits, int y, byte[] data, int off, long count) {
+        int width = store.width;
+        int per = 3*bits;
+        int mask = (1<<bits)-1;
+        int all = (1<<per)-1;
+        int clear = ~(mask<<16 | mask<<8 | mask);
+        int[] row = new int[width];
+        long acc = 0;
+        int have = 0;
+        int next = off;
+        int end = off+(int)((count+7)/8);
+        for (long left = count; left>0; y++) {
+            int pixels = (int)Math.min(width, (left+per-1)/per);
+            store.getRow(y, 0, pixels, row, 0);
+            for (int x = 0; x<pixels; x++, left -= per) {
+                while (have<per && next<end) {
+                    acc |= (data[next++] & 0xffL)<<have;
+                    have += 8;
+                }
+                int v = (int)acc & all;
+                acc >>>= per;
+                have -= per;
+                int rgb = row[x];
+                if (left<per) {
+                    // keep whatever is already in the bits past the end
+                    int old = (rgb>>16 & mask) | (rgb>>8 & mask)<<bits | (rgb & mask)<<2*bits;
+                    int keep = (1<<left)-1;
+                    v = v & keep | old & ~keep;
+                }
+                row[x] = rgb & clear | (v & mask)<<16 | (v>>bits & mask)<<8 | v>>2*bits & mask;
+            }
+            store.setRow(y, 0, pixels, row, 0);
+        }
+    }
+
+    /**
+     * Reads hidden bytes from the pixels from the start of a row on
+     * @param store The store to read
+     * @param bits The low bits of each channel that were used
+     * @param y The first row
+     * @param data Where to put the bytes
+     * @param off The first byte to fill
+     * @param count The number of bytes to read
+     */
+    private static void extract(PixelStore store, int bits, int y, byte[] data, int off, int count) {
+        int width = store.width;
+        int per = 3*bits;
+        int mask = (1<<bits)-1;
+        int[] row = new int[width];
+        long acc = 0;
+        int have = 0;
+        int next = off;
+        int end = off+count;
+        while (next<end) {
+            int pixels = (int)Math.min(width, ((long)(end-next)*8-have+per-1)/per);
+            store.getRow(y++, 0, pixels, row, 0);
+            for (int x = 0; x<pixels; x++) {
+                int rgb = row[x];
+                acc |= (long)((rgb>>16 & mask) | (rgb>>8 & mask)<<bits | (rgb & mask)<<2*bits)<<have;
+                have += per;
+                while (have>=8 && next<end) {
+                    data[next++] = (byte)acc;
+                    acc >>>= 8;
+                    have -= 8;
+                }
+            }
+        }
+    }
+
+    /** Reads until the count is reached or the stream ends, returning the bytes read */
+    private static int read(InputStream in, byte[] buffer, int off, int count) {
+        try {
+            return in.readNBytes(buffer, off, count);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** The bytes hidden in a whole band of rows */
+    private static int bandBytes(PixelStore store, int bits) {
+        long bytes = (long)BandedPixelStore.BAND_HEIGHT*store.width*3*bits/8;
+        if (bytes>Integer.MAX_VALUE) throw new RuntimeException("The picture is too wide to hide bytes in");
+        return (int)bytes;
+    }
+
+    private static int bands(PixelStore store) {
+        return (store.height+BandedPixelStore.BAND_HEIGHT-1)/BandedPixelStore.BAND_HEIGHT;
+    }
+
+    /** The number of bands to read or write the stream for at once */
+    private static int group(int bandBytes) {
+        return Math.max(1, Math.min(BANDS_PER_THREAD*Runtime.getRuntime().availableProcessors(), MAX_BUFFER/bandBytes));
+    }
+
+    private static void checkBits(int bits) {
+        if (bits<1 || bits>4) throw new RuntimeException("Can only hide bytes in 1 to 4 bits of each channel");
+    }
+}
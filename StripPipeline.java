@@ -0,0 +1,398 @@
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Streams an image file through a chain of {@link PictureFilter}s in horizontal strips, so
+ * only a few strips are ever in memory no matter how big the image is.
+ *
+ * Three stages run on their own threads, connected by bounded queues:
+ * <ol>
+ * <li>the source region-reads stripRows rows at a time with an ImageReader</li>
+ * <li>the filter stage keeps enough strips to give each one a halo of rows above and
+ *     below (the sum of the filters' radii), runs the chain on the strip plus its halo, and
+ *     keeps just the strip's own rows of the result</li>
+ * <li>the sink (on the calling thread) hands the rows to an ImageWriter as it asks for them</li>
+ * </ol>
+ * Only filters that look at a bounded neighbourhood can be streamed, so the mirrors, flips
+ * and fixRoof are rejected. The result is the same as running the chain on the whole
+ * picture, except for glassFilter, which is random either way.
+ *
+ * Memory stays bounded for writers that ask for rows top to bottom (PNG, TIFF). The JPEG
+ * writer asks for the whole image at once, so JPEG output is collected before encoding, and
+ * writers that go bottom-up (BMP) are rejected.
+ * Likewise region reads only skip decoding for formats that allow it (tiled or striped
+ * TIFF); for JPEG and PNG each read decodes from the top of the image down to the strip.
+ */
+public class StripPipeline {
+
+    /** The color model of every strip: packed 0xRRGGBB ints, like BufferedImage.TYPE_INT_RGB */
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+    /** A run of whole rows of packed colors */
+    private static final class Strip {
+        final int y;
+        final int rows;
+        final int[] data;
+
+        Strip(int y, int rows, int[] data) {
+            this.y = y;
+            this.rows = rows;
+            this.data = data;
+        }
+    }
+
+    /** Marks the end of a queue; check the pipeline's failure before trusting it */
+    private static final Strip END = new Strip(-1, 0, null);
+
+    private final List<PictureFilter> filters;
+    private final int halo;
+    private final int stripRows;
+    private final int queueDepth;
+
+    /**
+     * Creates a pipeline
+     * @param filters The filters to run, in order. None of them may be {@link PictureFilter#GLOBAL}
+     * @param stripRows The number of rows read, filtered and written at a time
+     * @param queueDepth The number of strips each queue between stages can hold
+     */
+    public StripPipeline(List<PictureFilter> filters, int stripRows, int queueDepth) {
+        if (stripRows<=0) throw new RuntimeException("Strips must have at least one row");
+        if (queueDepth<=0) throw new RuntimeException("Queues must hold at least one strip");
+        int halo = 0;
+        for (PictureFilter filter : filters) {
+            if (filter.getRadius()==PictureFilter.GLOBAL)
+                throw new RuntimeException(filter+" needs the whole picture, so it can't be streamed");
+            halo += filter.getRadius();
+        }
+        this.filters = List.copyOf(filters);
+        this.halo = halo;
+        this.stripRows = stripRows;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Gets the number of rows above and below each strip that the filters need to see
+     * @return The halo, in rows
+     */
+    public int getHalo() {
+        return halo;
+    }
+
+    /**
+     * Runs the pipeline, returning once the output has been written
+     * @param input The image file to read
+     * @param output The image file to write; its extension picks the format
+     */
+    public void run(Path input, Path output) {
+        String name = output.getFileName().toString();
+        String suffix = name.substring(name.lastIndexOf('.')+1);
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(suffix);
+        if (!writers.hasNext()) throw new RuntimeException("No image writer for ."+suffix+" files");
+        ImageWriter writer = writers.next();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        if (!Files.exists(input)) throw new RuntimeException("No picture at the location "+input+"!");
+        try (ImageInputStream in = ImageIO.createImageInputStream(input.toFile())) {
+            Iterator<ImageReader> readers = in==null ? null : ImageIO.getImageReaders(in);
+            if (readers==null || !readers.hasNext()) throw new RuntimeException("Can't read the picture at "+input);
+            ImageReader reader = readers.next();
+            reader.setInput(in, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+
+            BlockingQueue<Strip> decoded = new ArrayBlockingQueue<>(queueDepth);
+            BlockingQueue<Strip> filtered = new ArrayBlockingQueue<>(queueDepth);
+            Thread source = new Thread(() -> read(reader, width, height, decoded, failure), "strip-source");
+            Thread filter = new Thread(() -> filter(width, height, decoded, filtered, failure), "strip-filter");
+            source.setDaemon(true);
+            filter.setDaemon(true);
+            source.start();
+            filter.start();
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(output.toFile())) {
+                if (out==null) throw new RuntimeException("Can't write to location: "+output);
+                writer.setOutput(out);
+                writer.write(new StripImage(width, height, filtered, failure));
+            } finally {
+                source.interrupt();
+                filter.interrupt();
+                // the source may be in the middle of a read, so wait before closing its stream
+                joinQuietly(source);
+                joinQuietly(filter);
+                writer.dispose();
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        Throwable t = failure.get();
+        if (t!=null) throw new RuntimeException("Strip pipeline failed: "+t.getMessage(), t);
+    }
+
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** The source stage: region-reads the image a strip at a time */
+    private void read(ImageReader reader, int width, int height, BlockingQueue<Strip> decoded,
+                      AtomicReference<Throwable> failure) {
+        try {
+            try {
+                for (int y = 0; y<height; y += stripRows) {
+                    int rows = Math.min(stripRows, height-y);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, y, width, rows));
+                    BufferedImage region = reader.read(0, param);
+                    int[] data = region.getRGB(0, 0, width, rows, null, 0, width);
+                    for (int i = 0; i<data.length; i++) data[i] &= 0xffffff;
+                    decoded.put(new Strip(y, rows, data));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+            decoded.put(END);
+        } catch (InterruptedException e) {
+            // the sink gave up; nobody is waiting for the end
+        }
+    }
+
+    /** The filter stage: runs the chain over each strip plus its halo */
+    private void filter(int width, int height, BlockingQueue<Strip> decoded, BlockingQueue<Strip> filtered,
+                        AtomicReference<Throwable> failure) {
+        try {
+            try {
+                ArrayDeque<Strip> window = new ArrayDeque<>();
+                boolean done = false;
+                int next = 0;
+                while (next<height) {
+                    int need = Math.min(height, next+stripRows+halo);
+                    while (!done && (window.isEmpty() || window.peekLast().y+window.peekLast().rows<need)) {
+                        Strip strip = decoded.take();
+                        if (strip==END) done = true;
+                        else window.addLast(strip);
+                    }
+                    if (failure.get()!=null) break;
+                    if (window.isEmpty() || window.peekLast().y+window.peekLast().rows<need)
+                        throw new RuntimeException("The source ended early, at row "+next);
+
+                    int rows = Math.min(stripRows, height-next);
+                    int top = Math.max(0, next-halo);
+                    BandedPixelStore store = new BandedPixelStore(width, need-top);
+                    for (Strip strip : window) {
+                        int from = Math.max(top, strip.y);
+                        int to = Math.min(need, strip.y+strip.rows);
+                        for (int y = from; y<to; y++) store.setRow(y-top, 0, width, strip.data, (y-strip.y)*width);
+                    }
+                    Picture result = PictureFilter.applyAll(filters, new Picture(store));
+                    if (result.getWidth()!=width || result.getHeight()!=need-top)
+                        throw new RuntimeException("A filter changed the size of a strip");
+                    int[] data = new int[rows*width];
+                    for (int y = 0; y<rows; y++) result.store().getRow(next-top+y, 0, width, data, y*width);
+                    filtered.put(new Strip(next, rows, data));
+
+                    next += rows;
+                    while (!window.isEmpty() && window.peekFirst().y+window.peekFirst().rows<=next-halo) window.removeFirst();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+            filtered.put(END);
+        } catch (InterruptedException e) {
+            // the sink gave up; nobody is waiting for the end
+        }
+    }
+
+    /**
+     * The sink: an image whose rows are taken from the filter stage as the writer asks for
+     * them. Rows the writer has moved past are dropped, so asking for them again fails
+     */
+    private final class StripImage implements RenderedImage {
+
+        private final int width;
+        private final int height;
+        private final BlockingQueue<Strip> filtered;
+        private final AtomicReference<Throwable> failure;
+        private final ArrayDeque<Strip> window = new ArrayDeque<>();
+        private int available;
+
+        StripImage(int width, int height, BlockingQueue<Strip> filtered, AtomicReference<Throwable> failure) {
+            this.width = width;
+            this.height = height;
+            this.filtered = filtered;
+            this.failure = failure;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+            while (!window.isEmpty() && window.peekFirst().y+window.peekFirst().rows<=bounds.y) window.removeFirst();
+            if (!window.isEmpty() && window.peekFirst().y>bounds.y || window.isEmpty() && available>bounds.y)
+                throw new RuntimeException("The image writer asked for rows out of order (BMP writes bottom-up); write PNG, TIFF or JPEG instead");
+            while (available<bounds.y+bounds.height) {
+                Strip strip;
+                try {
+                    strip = filtered.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for rows");
+                }
+                if (strip==END) {
+                    Throwable t = failure.get();
+                    throw new RuntimeException(t==null ? "The filter stage ended early" : t.getMessage(), t);
+                }
+                window.addLast(strip);
+                available = strip.y+strip.rows;
+            }
+
+            WritableRaster raster = RGB.createCompatibleWritableRaster(bounds.width, bounds.height)
+                    .createWritableTranslatedChild(bounds.x, bounds.y);
+            int[] row = new int[bounds.width];
+            for (Strip strip : window) {
+                int from = Math.max(bounds.y, strip.y);
+                int to = Math.min(bounds.y+bounds.height, strip.y+strip.rows);
+                for (int y = from; y<to; y++) {
+                    System.arraycopy(strip.data, (y-strip.y)*width+bounds.x, row, 0, bounds.width);
+                    raster.setDataElements(bounds.x, y, bounds.width, 1, row);
+                }
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(0, tileY*stripRows, width, stripRows));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster==null) return (WritableRaster)getData();
+            raster.setRect(getData(raster.getBounds()));
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return RGB;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return RGB.createCompatibleSampleModel(width, stripRows);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height+stripRows-1)/stripRows;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripRows;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A {@link PixelStore} for images too big for the heap. The image is cut into
+ * {@link #TILE_SIZE}x{@link #TILE_SIZE} tiles which are:
+ * <ul>
+ * <li>loaded lazily, with a region read from the source image, the first time they are touched</li>
+ * <li>kept in an LRU of at most the memory budget; clean tiles are simply dropped when evicted</li>
+ * <li>written to a temporary spill file when they are evicted dirty, and read back from there later</li>
+ * </ul>
+ * Snapshots share resident tiles copy-on-write and share the spill file. Its tile-sized slots
+ * are reference counted, by the stores whose tiles point at them and by resident tiles that
+ * are copies of them, so a slot is reused as soon as no store or snapshot can read it any more
+ * and the file only grows when every slot is still needed. Region reads are only as cheap as the source format allows: tiled formats
+ * read just the tile, while JPEG and PNG decode up to the tile's last row.
+ */
+class TiledPixelStore extends PixelStore {
+
+    /** log2 of {@link #TILE_SIZE} */
+    static final int TILE_SHIFT = 8;
+
+    /** The width and height of a tile, in pixels */
+    static final int TILE_SIZE = 1<<TILE_SHIFT;
+
+    private static final int TILE_MASK = TILE_SIZE-1;
+
+    /** The number of bytes held by one resident tile */
+    static final long TILE_BYTES = 4L*TILE_SIZE*TILE_SIZE;
+
+    /** The location of a tile that has never been written: read it from the source (or black if there isn't one) */
+    private static final long SOURCE = -1;
+
+    /** The location of a resident tile whose data has changed since it was last loaded or spilled */
+    private static final long DIRTY = -2;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** The pixels of one tile, always a full TILE_SIZE x TILE_SIZE with a stride of TILE_SIZE */
+    private static final class Tile {
+        final int[] data;
+        final AtomicInteger owners = new AtomicInteger(1);
+        /** Where an identical copy of data lives: SOURCE, a spill file offset, or DIRTY */
+        volatile long origin;
+
+        Tile(int[] data, long origin) {
+            this.data = data;
+            this.origin = origin;
+        }
+    }
+
+    /** The image the tiles are read from, shared by a store and its snapshots */
+    private static final class Source {
+        final ImageInputStream input;
+        final ImageReader reader;
+        final AtomicInteger owners = new AtomicInteger(1);
+
+        Source(ImageInputStream input, ImageReader reader) {
+            this.input = input;
+            this.reader = reader;
+        }
+
+        synchronized void read(int x, int y, int w, int h, int[] dst) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(x, y, w, h));
+            BufferedImage region = reader.read(0, param);
+            region.getRGB(0, 0, w, h, dst, 0, TILE_SIZE);
+            for (int i = 0; i<dst.length; i++) dst[i] &= 0xffffff;
+        }
+
+        void release() {
+            if (owners.decrementAndGet()>0) return;
+            reader.dispose();
+            try {
+                input.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    /** A temporary file of evicted dirty tiles, in reference counted slots, shared by a store and its snapshots */
+    private static final class SpillFile {
+        final FileChannel channel;
+        final AtomicInteger owners = new AtomicInteger(1);
+        /** The references to each slot, by offset/TILE_BYTES */
+        private int[] refs = new int[16];
+        /** Slots nothing refers to, reused most recently freed first */
+        private final ArrayDeque<Long> free = new ArrayDeque<>();
+        private long end;
+
+        SpillFile() throws IOException {
+            Path path = Files.createTempFile("picture-tiles", ".spill");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        /**
+         * Writes a tile into a free slot, growing the file only if there isn't one
+         * @param data The tile's pixels
+         * @return The slot's offset, with one reference held by the caller
+         */
+        long write(int[] data) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate((int)TILE_BYTES);
+            bytes.asIntBuffer().put(data);
+            long offset = allocate();
+            while (bytes.hasRemaining()) channel.write(bytes, offset+bytes.position());
+            return offset;
+        }
+
+        private synchronized long allocate() {
+            long offset;
+            if (free.isEmpty()) {
+                offset = end;
+                end += TILE_BYTES;
+                int slot = (int)(offset/TILE_BYTES);
+                if (slot>=refs.length) refs = Arrays.copyOf(refs, 2*refs.length);
+            } else {
+                offset = free.pop();
+            }
+            refs[(int)(offset/TILE_BYTES)] = 1;
+            return offset;
+        }
+
+        /** Adds a reference to a slot, if the location is one */
+        synchronized void retain(long offset) {
+            if (offset>=0) refs[(int)(offset/TILE_BYTES)]++;
+        }
+
+        /** Drops a reference to a slot, if the location is one, freeing the slot after the last */
+        synchronized void release(long offset) {
+            if (offset>=0 && --refs[(int)(offset/TILE_BYTES)]==0) free.push(offset);
+        }
+
+        void read(long offset, int[] dst) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate((int)TILE_BYTES);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset+bytes.position())<0) throw new IOException("Spill file is truncated");
+            }
+            bytes.flip();
+            IntBuffer ints = bytes.asIntBuffer();
+            ints.get(dst);
+        }
+
+        void release() {
+            if (owners.decrementAndGet()>0) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the file is deleted on close either way
+            }
+        }
+    }
+
+    /** The resources a store holds, released by its {@link Cleaner} without holding the store */
+    private static final class Resources implements Runnable {
+        final Source source;
+        final SpillFile spill;
+        final Map<Integer, Tile> resident;
+        final long[] location;
+
+        Resources(Source source, SpillFile spill, Map<Integer, Tile> resident, long[] location) {
+            this.source = source;
+            this.spill = spill;
+            this.resident = resident;
+            this.location = location;
+        }
+
+        @Override
+        public void run() {
+            synchronized (resident) {
+                for (Tile tile : resident.values()) drop(tile, spill);
+                resident.clear();
+                for (long at : location) spill.release(at);
+            }
+            if (source!=null) source.release();
+            spill.release();
+        }
+    }
+
+    private final int tilesX;
+    private final long budget;
+    private final Source source;
+    private final SpillFile spill;
+    /**
+     * Where each tile that isn't resident can be read back from: SOURCE or a spill file offset,
+     * each offset holding a reference to its slot. DIRTY while a tile written since it was
+     * loaded is resident
+     */
+    private final long[] location;
+    /** The resident tiles by index, least recently used first. Also the lock for this store */
+    private final LinkedHashMap<Integer, Tile> resident = new LinkedHashMap<>(16, 0.75f, true);
+
+    private TiledPixelStore(int width, int height, long budget, Source source, SpillFile spill, long[] location) {
+        super(width, height);
+        this.tilesX = (width+TILE_MASK)>>TILE_SHIFT;
+        this.budget = budget;
+        this.source = source;
+        this.spill = spill;
+        this.location = location;
+        CLEANER.register(this, new Resources(source, spill, resident, location));
+    }
+
+    /**
+     * Opens an image file as a tiled store. Only the header is read here
+     * @param file The image file
+     * @param budget The most bytes of tiles to keep on the heap
+     * @return The store
+     */
+    static TiledPixelStore open(File file, long budget) {
+        checkBudget(budget);
+        if (!file.exists()) throw new RuntimeException("No picture at the location "+file.getPath()+"!");
+        ImageInputStream input = null;
+        try {
+            input = ImageIO.createImageInputStream(file);
+            Iterator<ImageReader> readers = input==null ? null : ImageIO.getImageReaders(input);
+            if (readers==null || !readers.hasNext()) throw new IOException("Can't read the picture at "+file.getPath());
+            ImageReader reader = readers.next();
+            reader.setInput(input, true, true);
+            Source source = new Source(input, reader);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            return new TiledPixelStore(width, height, budget, source, new SpillFile(), filled(width, height));
+        } catch (IOException e) {
+            if (input!=null) try { input.close(); } catch (IOException ignored) { }
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates an all-black tiled store with no source image
+     * @param width The width of the store
+     * @param height The height of the store
+     * @param budget The most bytes of tiles to keep on the heap
+     * @return The store
+     */
+    static TiledPixelStore create(int width, int height, long budget) {
+        checkBudget(budget);
+        try {
+            return new TiledPixelStore(width, height, budget, null, new SpillFile(), filled(width, height));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static void checkBudget(long budget) {
+        if (budget<TILE_BYTES) throw new RuntimeException("The memory budget must hold at least one tile ("+TILE_BYTES+" bytes)");
+    }
+
+    private static long[] filled(int width, int height) {
+        long[] location = new long[((width+TILE_MASK)>>TILE_SHIFT)*((height+TILE_MASK)>>TILE_SHIFT)];
+        Arrays.fill(location, SOURCE);
+        return location;
+    }
+
+    /**
+     * Gets a tile for reading, loading it if it isn't resident
+     * @param index The tile index, ty*tilesX+tx
+     * @return The tile
+     */
+    private Tile tile(int index) {
+        Tile tile = resident.get(index);
+        if (tile!=null) return tile;
+        int[] data = new int[TILE_SIZE*TILE_SIZE];
+        long at = location[index];
+        try {
+            if (at>=0) {
+                spill.read(at, data);
+            } else if (source!=null) {
+                int tx = (index%tilesX)<<TILE_SHIFT;
+                int ty = (index/tilesX)<<TILE_SHIFT;
+                source.read(tx, ty, Math.min(TILE_SIZE, width-tx), Math.min(TILE_SIZE, height-ty), data);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        tile = new Tile(data, at);
+        spill.retain(at);
+        resident.put(index, tile);
+        evict();
+        return tile;
+    }
+
+    /**
+     * Gets a tile for writing, copying it first if it is shared with a snapshot
+     * @param index The tile index, ty*tilesX+tx
+     * @return The tile, which is marked dirty
+     */
+    private Tile writableTile(int index) {
+        Tile tile = tile(index);
+        if (tile.owners.get()>1) {
+            Tile own = new Tile(tile.data.clone(), DIRTY);
+            resident.put(index, own);
+            drop(tile, spill);
+            tile = own;
+        }
+        // the copies on disk are out of date now, so this store lets go of them
+        spill.release(tile.origin);
+        tile.origin = DIRTY;
+        spill.release(location[index]);
+        location[index] = DIRTY;
+        return tile;
+    }
+
+    /** Lets go of a share of a tile, and of its spill slot once nobody shares it */
+    private static void drop(Tile tile, SpillFile spill) {
+        if (tile.owners.decrementAndGet()==0) spill.release(tile.origin);
+    }
+
+    /** Drops least recently used tiles until the resident ones fit in the budget, spilling dirty ones */
+    private void evict() {
+        Iterator<Map.Entry<Integer, Tile>> it = resident.entrySet().iterator();
+        while ((long)resident.size()*TILE_BYTES>budget && it.hasNext()) {
+            Map.Entry<Integer, Tile> eldest = it.next();
+            Tile tile = eldest.getValue();
+            long origin;
+            // a snapshot sharing the tile may be evicting it too, under its own lock
+            synchronized (tile) {
+                origin = tile.origin;
+                if (origin==DIRTY) {
+                    try {
+                        origin = spill.write(tile.data);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                    }
+                    // only the last owner can be writing to it, so the spilled copy stays valid for everyone
+                    tile.origin = origin;
+                }
+            }
+            int index = eldest.getKey();
+            spill.retain(origin);
+            spill.release(location[index]);
+            location[index] = origin;
+            drop(tile, spill);
+            it.remove();
+        }
+    }
+
+    @Override
+    int get(int x, int y) {
+        synchronized (resident) {
+            return tile((y>>TILE_SHIFT)*tilesX+(x>>TILE_SHIFT)).data[(y&TILE_MASK)<<TILE_SHIFT | (x&TILE_MASK)];
+        }
+    }
+
+    @Override
+    void set(int x, int y, int rgb) {
+        synchronized (resident) {
+            writableTile((y>>TILE_SHIFT)*tilesX+(x>>TILE_SHIFT)).data[(y&TILE_MASK)<<TILE_SHIFT | (x&TILE_MASK)] = rgb;
+        }
+    }
+
+    @Override
+    void getRow(int y, int x, int w, int[] dst, int off) {
+        synchronized (resident) {
+            int rowStart = (y>>TILE_SHIFT)*tilesX;
+            int inTile = (y&TILE_MASK)<<TILE_SHIFT;
+            for (int c = x; c<x+w; ) {
+                int n = Math.min(x+w, ((c>>TILE_SHIFT)+1)<<TILE_SHIFT)-c;
+                System.arraycopy(tile(rowStart+(c>>TILE_SHIFT)).data, inTile | (c&TILE_MASK), dst, off+c-x, n);
+                c += n;
+            }
+        }
+    }
+
+    @Override
+    void setRow(int y, int x, int w, int[] src, int off) {
+        synchronized (resident) {
+            int rowStart = (y>>TILE_SHIFT)*tilesX;
+            int inTile = (y&TILE_MASK)<<TILE_SHIFT;
+            for (int c = x; c<x+w; ) {
+                int n = Math.min(x+w, ((c>>TILE_SHIFT)+1)<<TILE_SHIFT)-c;
+                System.arraycopy(src, off+c-x, writableTile(rowStart+(c>>TILE_SHIFT)).data, inTile | (c&TILE_MASK), n);
+                c += n;
+            }
+        }
+    }
+
+    /**
+     * Applies a point operation one tile at a time, so only one tile needs to be resident
+     */
+    @Override
+    void apply(IntUnaryOperator op, int x, int y, int w, int h) {
+        synchronized (resident) {
+            for (int ty = y>>TILE_SHIFT; ty<=(y+h-1)>>TILE_SHIFT; ty++) {
+                int r0 = Math.max(y, ty<<TILE_SHIFT);
+                int r1 = Math.min(y+h, (ty+1)<<TILE_SHIFT);
+                for (int tx = x>>TILE_SHIFT; tx<=(x+w-1)>>TILE_SHIFT; tx++) {
+                    int c0 = Math.max(x, tx<<TILE_SHIFT);
+                    int c1 = Math.min(x+w, (tx+1)<<TILE_SHIFT);
+                    int[] data = writableTile(ty*tilesX+tx).data;
+                    for (int r = r0; r<r1; r++) {
+                        int base = (r&TILE_MASK)<<TILE_SHIFT;
+                        for (int i = base+(c0&TILE_MASK); i<base+((c1-1)&TILE_MASK)+1; i++) data[i] = op.applyAsInt(data[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    PixelStore snapshot() {
+        synchronized (resident) {
+            if (source!=null) source.owners.incrementAndGet();
+            spill.owners.incrementAndGet();
+            for (long at : location) spill.retain(at);
+            TiledPixelStore copy = new TiledPixelStore(width, height, budget, source, spill, location.clone());
+            for (Map.Entry<Integer, Tile> entry : resident.entrySet()) {
+                entry.getValue().owners.incrementAndGet();
+                copy.resident.put(entry.getKey(), entry.getValue());
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Tiles are loaded and evicted under one lock, and a budget sized for a row of tiles would
+     * thrash if several threads worked on different rows, so this store is used from one thread
+     */
+    @Override
+    boolean concurrent() {
+        return false;
+    }
+
+    @Override
+    PixelStore blank(int width, int height) {
+        return create(width, height, budget);
+    }
+}